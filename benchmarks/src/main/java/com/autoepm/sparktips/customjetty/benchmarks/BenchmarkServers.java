@@ -0,0 +1,103 @@
+/*
+ * Copyright 2019 Giacomo Lacava
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package com.autoepm.sparktips.customjetty.benchmarks;
+
+import com.autoepm.sparktips.customjetty.MyCustomEmbeddedServerFactory;
+import spark.Service;
+import spark.embeddedserver.EmbeddedServers;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.security.cert.X509Certificate;
+import java.util.function.Consumer;
+
+/**
+ * Starts throwaway Spark instances backed by our custom factory, on an ephemeral port.
+ */
+public final class BenchmarkServers {
+
+    public static final String KEYSTORE_PASSWORD = "benchmark";
+
+    private BenchmarkServers() {
+    }
+
+    public static Service start(MyCustomEmbeddedServerFactory factory, Consumer<Service> routes) {
+        // the factory registry is global, so whatever was added last is what the next Service gets
+        EmbeddedServers.add(EmbeddedServers.Identifiers.JETTY, factory);
+        Service service = Service.ignite().port(0);
+        routes.accept(service);
+        service.init();
+        service.awaitInitialization();
+        return service;
+    }
+
+    public static void stop(Service service) {
+        if (service != null) {
+            service.stop();
+            service.awaitStop();
+        }
+    }
+
+    /**
+     * A throwaway self-signed EC keystore for localhost, made with the JDK's own keytool.
+     */
+    public static String selfSignedKeystore() throws IOException, InterruptedException {
+        File keystore = File.createTempFile("benchmark", ".p12");
+        keystore.delete();
+        keystore.deleteOnExit();
+        String keytool = Paths.get(System.getProperty("java.home"), "bin", "keytool").toString();
+        Process process = new ProcessBuilder(keytool, "-genkeypair", "-alias", "benchmark",
+                "-keyalg", "EC", "-keysize", "256", "-dname", "CN=localhost", "-validity", "2",
+                "-storetype", "PKCS12", "-keystore", keystore.getAbsolutePath(),
+                "-storepass", KEYSTORE_PASSWORD, "-keypass", KEYSTORE_PASSWORD)
+                .inheritIO()
+                .start();
+        if (process.waitFor() != 0 || !Files.exists(keystore.toPath())) {
+            throw new IOException("keytool failed, exit code " + process.exitValue());
+        }
+        return keystore.getAbsolutePath();
+    }
+
+    /**
+     * Client context that trusts anything, good enough for talking to our own self-signed server.
+     */
+    public static SSLContext trustAllContext() throws GeneralSecurityException {
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(null, new TrustManager[]{new X509TrustManager() {
+            @Override
+            public void checkClientTrusted(X509Certificate[] chain, String authType) {
+            }
+
+            @Override
+            public void checkServerTrusted(X509Certificate[] chain, String authType) {
+            }
+
+            @Override
+            public X509Certificate[] getAcceptedIssuers() {
+                return new X509Certificate[0];
+            }
+        }}, null);
+        return context;
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright 2019 Giacomo Lacava
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package com.autoepm.sparktips.customjetty.benchmarks;
+
+import org.eclipse.jetty.server.LocalConnector;
+import org.eclipse.jetty.server.Server;
+import org.openjdk.jmh.annotations.*;
+import spark.ExceptionMapper;
+import spark.RouteImpl;
+import spark.embeddedserver.jetty.JettyHandler;
+import spark.http.matching.MatcherFilter;
+import spark.route.HttpMethod;
+import spark.route.Routes;
+import spark.staticfiles.StaticFilesConfiguration;
+
+import javax.servlet.FilterConfig;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Request dispatch through JettyHandler -> MatcherFilter with no sockets involved: requests go
+ * through a LocalConnector on a keep-alive connection per benchmark thread, so what's left is
+ * HTTP parsing, Spark's route lookup and the handler itself.
+ * Spark checks routes one by one, so "last" against a big table shows what a long route list costs.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@Threads(1)
+public class DispatchBenchmark {
+
+    @Param({"10", "100", "1000"})
+    public int routeCount;
+
+    @Param({"first", "last", "missing"})
+    public String target;
+
+    private Server server;
+    private LocalConnector connector;
+    private String request;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        Routes routes = Routes.create();
+        for (int i = 0; i < routeCount; i++) {
+            routes.add(HttpMethod.get, RouteImpl.create("/api/resource" + i + "/:id", (req, res) -> "Hello World"));
+        }
+        // same wiring as MyCustomEmbeddedServerFactory.create
+        MatcherFilter matcherFilter = new MatcherFilter(routes, new StaticFilesConfiguration(), new ExceptionMapper(), false, false);
+        matcherFilter.init((FilterConfig) null);
+
+        server = new Server();
+        connector = new LocalConnector(server);
+        server.addConnector(connector);
+        server.setHandler(new JettyHandler(matcherFilter));
+        server.start();
+
+        String path;
+        if ("first".equals(target)) {
+            path = "/api/resource0/42";
+        } else if ("last".equals(target)) {
+            path = "/api/resource" + (routeCount - 1) + "/42";
+        } else {
+            path = "/nothing/here";
+        }
+        request = "GET " + path + " HTTP/1.1\r\nHost: localhost\r\n\r\n";
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        server.stop();
+    }
+
+    @State(Scope.Thread)
+    public static class Connection {
+        private LocalConnector.LocalEndPoint endPoint;
+
+        @Setup(Level.Trial)
+        public void open(DispatchBenchmark benchmark) throws Exception {
+            // the first request also waits for the connection to be accepted
+            endPoint = benchmark.connector.executeRequest(benchmark.request);
+            endPoint.getResponse();
+        }
+
+        @TearDown(Level.Trial)
+        public void close() {
+            endPoint.close();
+        }
+    }
+
+    @Benchmark
+    public ByteBuffer dispatch(Connection connection) throws Exception {
+        connection.endPoint.addInput(request);
+        return connection.endPoint.waitForResponse(false, 10, TimeUnit.SECONDS);
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright 2019 Giacomo Lacava
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package com.autoepm.sparktips.customjetty.benchmarks;
+
+import com.autoepm.sparktips.customjetty.ConnectorOptions;
+import com.autoepm.sparktips.customjetty.MyCustomEmbeddedServerFactory;
+import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.client.api.ContentResponse;
+import org.eclipse.jetty.http2.client.HTTP2Client;
+import org.eclipse.jetty.http2.client.http.HttpClientTransportOverHTTP2;
+import org.openjdk.jmh.annotations.*;
+import spark.Service;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Plain HTTP/1.1 keep-alive against h2c with prior knowledge, on the same plain connector.
+ * Run with many threads (e.g. -t 64) to see the effect of multiplexing: HTTP/1.1 needs one
+ * connection per in-flight request, h2c shares a handful of connections.
+ * Throughput mode gives requests/sec, SampleTime mode gives the p99.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 10)
+@Fork(1)
+@Threads(64)
+public class Http2CleartextBenchmark {
+
+    @Param({"http/1.1", "h2c"})
+    public String protocol;
+
+    private Service service;
+    private HttpClient client;
+    private String uri;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        MyCustomEmbeddedServerFactory factory = new MyCustomEmbeddedServerFactory()
+                .withConnectorOptions(new ConnectorOptions().withHttp2Cleartext(true));
+        service = BenchmarkServers.start(factory, s -> s.get("/hello", (req, res) -> "Hello World"));
+        uri = "http://localhost:" + service.port() + "/hello";
+
+        if ("h2c".equals(protocol)) {
+            client = new HttpClient(new HttpClientTransportOverHTTP2(new HTTP2Client()), null);
+        } else {
+            client = new HttpClient();
+            client.setMaxConnectionsPerDestination(1024);
+        }
+        client.start();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        client.stop();
+        BenchmarkServers.stop(service);
+    }
+
+    @Benchmark
+    public int get() throws Exception {
+        ContentResponse response = client.GET(uri);
+        return response.getStatus();
+    }
+}
@@ -0,0 +1,315 @@
+/*
+ * Copyright 2019 Giacomo Lacava
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package com.autoepm.sparktips.customjetty.benchmarks;
+
+import com.autoepm.sparktips.customjetty.LatencyHistogram;
+import com.autoepm.sparktips.customjetty.MyCustomEmbeddedServerFactory;
+import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.client.api.Response;
+import org.eclipse.jetty.client.api.Result;
+import org.eclipse.jetty.util.ssl.SslContextFactory;
+import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.WebSocketAdapter;
+import org.eclipse.jetty.websocket.api.WriteCallback;
+import org.eclipse.jetty.websocket.api.annotations.OnWebSocketMessage;
+import org.eclipse.jetty.websocket.api.annotations.WebSocket;
+import org.eclipse.jetty.websocket.client.WebSocketClient;
+import spark.Service;
+
+import javax.servlet.ServletOutputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Open model load test: requests go out at a constant rate whether or not earlier ones have come back,
+ * over a fixed number of keep-alive connections, against a server started in-process on an ephemeral port.
+ * Latency is measured from when each request was *supposed* to be sent, so a stalled server shows up
+ * in the percentiles instead of quietly slowing the load down (coordinated omission). The time from
+ * when the request actually went out is reported as well, to show how much that hides.
+ *
+ * Scenarios: json (small JSON response), stream (1MB body written in chunks), tls (json over https),
+ * websocket (echo; messages spread over the connections).
+ *
+ * Usage: java -cp target/benchmarks.jar com.autoepm.sparktips.customjetty.benchmarks.LoadTest
+ * [json|stream|tls|websocket] [requests/sec, default 1000] [seconds, default 30] [connections, default 64]
+ */
+public class LoadTest {
+
+    private static final int WARMUP_SECONDS = 5;
+    private static final int STREAM_BYTES = 1024 * 1024;
+    private static final byte[] CHUNK = new byte[8192];
+    private static final String JSON = "{\"id\":42,\"name\":\"Hello World\",\"tags\":[\"spark\",\"jetty\"]}";
+
+    public static void main(String[] args) throws Exception {
+        String scenario = args.length > 0 ? args[0] : "json";
+        int rate = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 30;
+        int connections = args.length > 3 ? Integer.parseInt(args[3]) : 64;
+
+        boolean tls = "tls".equals(scenario);
+        String keystore = tls ? BenchmarkServers.selfSignedKeystore() : null;
+        Service service = BenchmarkServers.start(new MyCustomEmbeddedServerFactory(), s -> {
+            if (tls) {
+                s.secure(keystore, BenchmarkServers.KEYSTORE_PASSWORD, null, null);
+            }
+            // websockets have to be set up before any route
+            s.webSocket("/echo", EchoSocket.class);
+            s.get("/json", (req, res) -> {
+                res.type("application/json");
+                return JSON;
+            });
+            s.get("/stream", (req, res) -> {
+                res.type("application/octet-stream");
+                ServletOutputStream out = res.raw().getOutputStream();
+                for (int written = 0; written < STREAM_BYTES; written += CHUNK.length) {
+                    out.write(CHUNK);
+                }
+                return "";
+            });
+        });
+
+        Target target;
+        switch (scenario) {
+            case "json":
+            case "tls":
+                target = new HttpTarget((tls ? "https" : "http") + "://localhost:" + service.port() + "/json", connections, rate);
+                break;
+            case "stream":
+                target = new HttpTarget("http://localhost:" + service.port() + "/stream", connections, rate);
+                break;
+            case "websocket":
+                target = new WebSocketTarget("ws://localhost:" + service.port() + "/echo", connections);
+                break;
+            default:
+                throw new IllegalArgumentException("unknown scenario " + scenario);
+        }
+
+        try {
+            target.start();
+            System.out.printf("%s: warming up for %ds%n", scenario, WARMUP_SECONDS);
+            run(scenario, target, rate, WARMUP_SECONDS, new Recorder());
+            Recorder recorder = new Recorder();
+            run(scenario, target, rate, seconds, recorder);
+            report(scenario, rate, seconds, recorder);
+        } finally {
+            target.stop();
+            BenchmarkServers.stop(service);
+        }
+    }
+
+    private static void run(String scenario, Target target, int rate, int seconds, Recorder recorder) throws Exception {
+        long interval = TimeUnit.SECONDS.toNanos(1) / rate;
+        long start = System.nanoTime();
+        long end = start + TimeUnit.SECONDS.toNanos(seconds);
+        long nextReport = start + TimeUnit.SECONDS.toNanos(1);
+        for (long i = 0; ; i++) {
+            // the schedule never waits for responses, if we fall behind we catch up in a burst
+            long intended = start + i * interval;
+            if (intended >= end) {
+                break;
+            }
+            long wait = intended - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            recorder.sent.incrementAndGet();
+            target.send(intended, recorder);
+
+            if (intended >= nextReport) {
+                System.out.printf("%s: %ds, %d sent, %d done, %d in flight, %d errors%n", scenario,
+                        TimeUnit.NANOSECONDS.toSeconds(intended - start), recorder.sent.get(),
+                        recorder.done.sum(), recorder.inFlight(), recorder.errors.sum());
+                nextReport += TimeUnit.SECONDS.toNanos(1);
+            }
+        }
+        // give stragglers a while, whatever is left after that counts as lost
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+        while (recorder.inFlight() > 0 && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+    }
+
+    private static void report(String scenario, int rate, int seconds, Recorder recorder) {
+        LatencyHistogram.Snapshot corrected = recorder.corrected.snapshot();
+        LatencyHistogram.Snapshot service = recorder.service.snapshot();
+        System.out.printf("%n%s: target %d req/s, achieved %.1f req/s over %ds%n", scenario, rate,
+                recorder.done.sum() / (double) seconds, seconds);
+        System.out.printf("  %d ok, %d errors, %d lost, %.1f MB received%n", recorder.done.sum() - recorder.errors.sum(),
+                recorder.errors.sum(), recorder.inFlight(), recorder.bytes.sum() / (1024.0 * 1024.0));
+        printLatency("latency (from intended start, corrected)", corrected);
+        printLatency("service time (from actual send)         ", service);
+    }
+
+    private static void printLatency(String label, LatencyHistogram.Snapshot latency) {
+        System.out.printf("  %s  p50 %s  p90 %s  p99 %s  p99.9 %s  max %s%n", label,
+                millis(latency.getPercentileMicros(50)), millis(latency.getPercentileMicros(90)),
+                millis(latency.getPercentileMicros(99)), millis(latency.getPercentileMicros(99.9)),
+                millis(latency.getMaxMicros()));
+    }
+
+    private static String millis(long micros) {
+        return String.format("%.2fms", micros / 1000.0);
+    }
+
+    private static class Recorder {
+        private final LatencyHistogram corrected = new LatencyHistogram();
+        private final LatencyHistogram service = new LatencyHistogram();
+        private final AtomicLong sent = new AtomicLong();
+        private final LongAdder done = new LongAdder();
+        private final LongAdder errors = new LongAdder();
+        private final LongAdder bytes = new LongAdder();
+
+        private void completed(long intended, long sentAt, boolean ok, long received) {
+            long now = System.nanoTime();
+            corrected.recordNanos(now - intended);
+            service.recordNanos(now - sentAt);
+            bytes.add(received);
+            if (!ok) {
+                errors.increment();
+            }
+            done.increment();
+        }
+
+        private long inFlight() {
+            return sent.get() - done.sum();
+        }
+    }
+
+    private interface Target {
+        void start() throws Exception;
+
+        void send(long intended, Recorder recorder);
+
+        void stop() throws Exception;
+    }
+
+    private static class HttpTarget implements Target {
+        private final String uri;
+        private final HttpClient client;
+
+        private HttpTarget(String uri, int connections, int rate) {
+            this.uri = uri;
+            this.client = new HttpClient(new SslContextFactory(true));
+            client.setMaxConnectionsPerDestination(connections);
+            // an open model has to queue on the client side rather than refuse to send,
+            // enough for everything sent within the request timeout (the queue is allocated up front)
+            client.setMaxRequestsQueuedPerDestination(Math.max(1024, rate * 30));
+        }
+
+        @Override
+        public void start() throws Exception {
+            client.start();
+        }
+
+        @Override
+        public void send(long intended, Recorder recorder) {
+            long[] sentAt = {System.nanoTime()};
+            client.newRequest(uri)
+                    .timeout(30, TimeUnit.SECONDS)
+                    .onRequestBegin(request -> sentAt[0] = System.nanoTime())
+                    .send(new Response.Listener.Adapter() {
+                        private long received;
+
+                        @Override
+                        public void onContent(Response response, ByteBuffer content) {
+                            received += content.remaining();
+                        }
+
+                        @Override
+                        public void onComplete(Result result) {
+                            boolean ok = result.isSucceeded() && result.getResponse().getStatus() == 200;
+                            recorder.completed(intended, sentAt[0], ok, received);
+                        }
+                    });
+        }
+
+        @Override
+        public void stop() throws Exception {
+            client.stop();
+        }
+    }
+
+    private static class WebSocketTarget implements Target {
+        private final String uri;
+        private final int connections;
+        private final WebSocketClient client = new WebSocketClient();
+        private final List<Session> sessions = new ArrayList<>();
+        private volatile Recorder recorder;
+        private int next;
+
+        private WebSocketTarget(String uri, int connections) {
+            this.uri = uri;
+            this.connections = connections;
+        }
+
+        @Override
+        public void start() throws Exception {
+            client.start();
+            for (int i = 0; i < connections; i++) {
+                sessions.add(client.connect(new WebSocketAdapter() {
+                    @Override
+                    public void onWebSocketText(String message) {
+                        // the echo carries both timestamps back, so no bookkeeping per message
+                        int separator = message.indexOf(':');
+                        recorder.completed(Long.parseLong(message.substring(0, separator)),
+                                Long.parseLong(message.substring(separator + 1)), true, message.length());
+                    }
+                }, URI.create(uri)).get(10, TimeUnit.SECONDS));
+            }
+        }
+
+        @Override
+        public void send(long intended, Recorder recorder) {
+            this.recorder = recorder;
+            Session session = sessions.get(next++ % sessions.size());
+            session.getRemote().sendString(intended + ":" + System.nanoTime(), new WriteCallback() {
+                @Override
+                public void writeFailed(Throwable x) {
+                    recorder.completed(intended, intended, false, 0);
+                }
+
+                @Override
+                public void writeSuccess() {
+                }
+            });
+        }
+
+        @Override
+        public void stop() throws Exception {
+            for (Session session : sessions) {
+                session.close();
+            }
+            client.stop();
+        }
+    }
+
+    @WebSocket
+    public static class EchoSocket {
+        @OnWebSocketMessage
+        public void onMessage(Session session, String message) throws IOException {
+            session.getRemote().sendString(message);
+        }
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2019 Giacomo Lacava
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package com.autoepm.sparktips.customjetty.benchmarks;
+
+import com.autoepm.sparktips.customjetty.MyCustomEmbeddedServerFactory;
+import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.client.api.ContentResponse;
+import org.eclipse.jetty.util.ssl.SslContextFactory;
+import org.openjdk.jmh.annotations.*;
+import spark.Service;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * HTTP/1.1 keep-alive throughput over loopback, against the plain and the TLS connector
+ * from MyCustomSocketConnectorFactory. Connections are reused, so "tls" measures record
+ * encryption rather than handshakes (TlsHandshakeBenchmark does those).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 10)
+@Fork(1)
+@Threads(16)
+public class LoopbackThroughputBenchmark {
+
+    @Param({"plain", "tls"})
+    public String connector;
+
+    @Param({"12", "16384"})
+    public int responseBytes;
+
+    private Service service;
+    private HttpClient client;
+    private String uri;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        boolean tls = "tls".equals(connector);
+        String keystore = tls ? BenchmarkServers.selfSignedKeystore() : null;
+        String body = new String(new char[responseBytes]).replace('\0', 'x');
+        service = BenchmarkServers.start(new MyCustomEmbeddedServerFactory(), s -> {
+            if (tls) {
+                s.secure(keystore, BenchmarkServers.KEYSTORE_PASSWORD, null, null);
+            }
+            s.get("/hello", (req, res) -> body);
+        });
+        uri = (tls ? "https" : "http") + "://localhost:" + service.port() + "/hello";
+
+        client = new HttpClient(new SslContextFactory(true));
+        client.setMaxConnectionsPerDestination(64);
+        client.start();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        client.stop();
+        BenchmarkServers.stop(service);
+    }
+
+    @Benchmark
+    public int get() throws Exception {
+        ContentResponse response = client.GET(uri);
+        return response.getContent().length;
+    }
+}
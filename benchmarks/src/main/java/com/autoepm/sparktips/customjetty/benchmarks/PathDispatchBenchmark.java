@@ -0,0 +1,146 @@
+/*
+ * Copyright 2019 Giacomo Lacava
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+package com.autoepm.sparktips.customjetty.benchmarks;
+
+import com.autoepm.sparktips.customjetty.PathDispatchHandler;
+import org.eclipse.jetty.server.Handler;
+import org.eclipse.jetty.server.LocalConnector;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.eclipse.jetty.server.handler.HandlerList;
+import org.openjdk.jmh.annotations.*;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Handler dispatch with lots of registered paths: a HandlerList, where every handler is asked in turn
+ * and has to check the path itself, against PathDispatchHandler's trie lookup.
+ * Same LocalConnector setup as DispatchBenchmark, so the HTTP parsing cost is in both; compare the two
+ * dispatchers at the same pathCount, and "first" against "last" for the scan cost.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@Threads(1)
+public class PathDispatchBenchmark {
+
+    @Param({"10", "1000", "5000"})
+    public int pathCount;
+
+    @Param({"list", "trie"})
+    public String dispatcher;
+
+    @Param({"first", "last", "missing"})
+    public String target;
+
+    private Server server;
+    private LocalConnector connector;
+    private String request;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        Handler fallback = new Answer(null);
+        Handler root;
+        if ("list".equals(dispatcher)) {
+            Handler[] handlers = new Handler[pathCount + 1];
+            for (int i = 0; i < pathCount; i++) {
+                handlers[i] = new Answer("/api/resource" + i);
+            }
+            handlers[pathCount] = fallback;
+            HandlerList list = new HandlerList();
+            list.setHandlers(handlers);
+            root = list;
+        } else {
+            PathDispatchHandler trie = new PathDispatchHandler(fallback);
+            for (int i = 0; i < pathCount; i++) {
+                String prefix = "/api/resource" + i;
+                trie.withPrefix(prefix, new Answer(prefix));
+            }
+            root = trie;
+        }
+
+        server = new Server();
+        connector = new LocalConnector(server);
+        server.addConnector(connector);
+        server.setHandler(root);
+        server.start();
+
+        String path;
+        if ("first".equals(target)) {
+            path = "/api/resource0/42";
+        } else if ("last".equals(target)) {
+            path = "/api/resource" + (pathCount - 1) + "/42";
+        } else {
+            path = "/nothing/here";
+        }
+        request = "GET " + path + " HTTP/1.1\r\nHost: localhost\r\n\r\n";
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        server.stop();
+    }
+
+    @State(Scope.Thread)
+    public static class Connection {
+        private LocalConnector.LocalEndPoint endPoint;
+
+        @Setup(Level.Trial)
+        public void open(PathDispatchBenchmark benchmark) throws Exception {
+            endPoint = benchmark.connector.executeRequest(benchmark.request);
+            endPoint.getResponse();
+        }
+
+        @TearDown(Level.Trial)
+        public void close() {
+            endPoint.close();
+        }
+    }
+
+    @Benchmark
+    public ByteBuffer dispatch(Connection connection) throws Exception {
+        connection.endPoint.addInput(request);
+        return connection.endPoint.waitForResponse(false, 10, TimeUnit.SECONDS);
+    }
+
+    // answers its own prefix (or anything, without one), the way a handler in a HandlerList has to decide
+    private static class Answer extends AbstractHandler {
+        private final String prefix;
+
+        private Answer(String prefix) {
+            this.prefix = prefix;
+        }
+
+        @Override
+        public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response) throws IOException {
+            if (prefix != null && !(target.startsWith(prefix) && (target.length() == prefix.length() || target.charAt(prefix.length()) == '/'))) {
+                return;
+            }
+            response.setContentLength(11);
+            response.getOutputStream().write("Hello World".getBytes());
+            baseRequest.setHandled(true);
+        }
+    }
+}
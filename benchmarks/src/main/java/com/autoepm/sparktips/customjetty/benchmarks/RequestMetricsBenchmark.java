@@ -0,0 +1,117 @@
+/*
+ * Copyright 2019 Giacomo Lacava
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package com.autoepm.sparktips.customjetty.benchmarks;
+
+import com.autoepm.sparktips.customjetty.RequestMetrics;
+import com.autoepm.sparktips.customjetty.SparkRouteResolver;
+import org.openjdk.jmh.annotations.*;
+import spark.RouteImpl;
+import spark.route.HttpMethod;
+import spark.route.Routes;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What RequestMetricsHandler adds to every request: resolving the route label (cached after
+ * the first hit) and recording latency, status and byte counts. Should stay well under 1us;
+ * run with -prof gc to check that the hot path doesn't allocate.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RequestMetricsBenchmark {
+
+    @Param({"10", "100"})
+    public int routeCount;
+
+    private RequestMetrics metrics;
+    private RequestMetrics.Route route;
+    private SparkRouteResolver resolver;
+    private HttpServletRequest request;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        Routes routes = Routes.create();
+        for (int i = 0; i < routeCount; i++) {
+            routes.add(HttpMethod.get, RouteImpl.create("/api/resource" + i + "/:id", (req, res) -> "ok"));
+        }
+        metrics = new RequestMetrics();
+        route = metrics.route("GET /api/resource0/:id");
+        resolver = new SparkRouteResolver(routes, metrics);
+        request = new FixedRequest("GET", "/api/resource" + (routeCount - 1) + "/42");
+        // prime the cache, like any request after the first
+        resolver.resolve(request);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void record() {
+        route.record(ThreadLocalRandom.current().nextLong(100_000, 10_000_000), 200, 128, 4096);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void recordContended() {
+        route.record(ThreadLocalRandom.current().nextLong(100_000, 10_000_000), 200, 128, 4096);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void resolveAndRecord() {
+        long start = System.nanoTime();
+        RequestMetrics.Route resolved = resolver.resolve(request);
+        resolved.record(System.nanoTime() - start, 200, 128, 4096);
+    }
+
+    /**
+     * Just enough of a request for the resolver, nothing here allocates.
+     */
+    private static class FixedRequest extends HttpServletRequestWrapper {
+        private final String method;
+        private final String uri;
+
+        FixedRequest(String method, String uri) {
+            super((HttpServletRequest) Proxy.newProxyInstance(HttpServletRequest.class.getClassLoader(),
+                    new Class<?>[]{HttpServletRequest.class}, (proxy, m, args) -> null));
+            this.method = method;
+            this.uri = uri;
+        }
+
+        @Override
+        public String getMethod() {
+            return method;
+        }
+
+        @Override
+        public String getRequestURI() {
+            return uri;
+        }
+
+        @Override
+        public String getHeader(String name) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright 2019 Giacomo Lacava
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package com.autoepm.sparktips.customjetty.benchmarks;
+
+import com.autoepm.sparktips.customjetty.MyCustomEmbeddedServerFactory;
+import com.autoepm.sparktips.customjetty.StartupOptions;
+import org.openjdk.jmh.annotations.*;
+import spark.Service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time to first response: from asking Spark to start on an ephemeral port to the first answer
+ * to a GET, with and without StartupOptions.withFastStartup(). Every invocation is a whole new server,
+ * so this is single shot; the first iterations also pay for class loading, which is why there are warmups.
+ * The per-phase breakdown of each startup shows up in the log.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 10)
+@Measurement(iterations = 50)
+@Fork(3)
+public class StartupBenchmark {
+
+    private static final byte[] REQUEST = "GET /hello HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n"
+            .getBytes(StandardCharsets.US_ASCII);
+
+    @Param({"false", "true"})
+    public boolean fastStartup;
+
+    private Service service;
+
+    @TearDown(Level.Invocation)
+    public void tearDown() {
+        BenchmarkServers.stop(service);
+        service = null;
+    }
+
+    @Benchmark
+    public int firstResponse() throws IOException {
+        MyCustomEmbeddedServerFactory factory = new MyCustomEmbeddedServerFactory()
+                .withStartupOptions(new StartupOptions().withFastStartup(fastStartup));
+        service = BenchmarkServers.start(factory, s -> s.get("/hello", (req, res) -> "Hello World"));
+        try (Socket socket = new Socket("localhost", service.port())) {
+            OutputStream out = socket.getOutputStream();
+            out.write(REQUEST);
+            out.flush();
+            InputStream in = socket.getInputStream();
+            int read = 0;
+            byte[] buffer = new byte[1024];
+            for (int n = in.read(buffer); n >= 0; n = in.read(buffer)) {
+                read += n;
+            }
+            return read;
+        }
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2019 Giacomo Lacava
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package com.autoepm.sparktips.customjetty.benchmarks;
+
+import com.autoepm.sparktips.customjetty.MyCustomEmbeddedServerFactory;
+import com.autoepm.sparktips.customjetty.StaticFileHandler;
+import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.client.api.Response;
+import org.eclipse.jetty.client.api.Result;
+import org.openjdk.jmh.annotations.*;
+import spark.Service;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Static files through spark's StaticFilesConfiguration against StaticFileHandler (cached, memory-mapped),
+ * for small, medium and large files. The client counts the bytes and throws them away.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 10)
+@Fork(1)
+@Threads(4)
+public class StaticFilesBenchmark {
+
+    @Param({"spark", "mapped"})
+    public String handler;
+
+    @Param({"1024", "102400", "52428800"})
+    public int fileSize;
+
+    private Path directory;
+    private Service service;
+    private HttpClient client;
+    private String uri;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        directory = Files.createTempDirectory("static");
+        writeFile(directory.resolve("file.bin").toFile(), fileSize);
+
+        MyCustomEmbeddedServerFactory factory = new MyCustomEmbeddedServerFactory();
+        if ("mapped".equals(handler)) {
+            factory.withStaticFiles(new StaticFileHandler(directory.toString()));
+        }
+        service = BenchmarkServers.start(factory, s -> {
+            if ("spark".equals(handler)) {
+                s.staticFiles.externalLocation(directory.toString());
+            }
+            s.get("/hello", (req, res) -> "Hello World");
+        });
+        uri = "http://localhost:" + service.port() + "/file.bin";
+
+        client = new HttpClient();
+        client.start();
+    }
+
+    private static void writeFile(File file, int size) throws IOException {
+        byte[] chunk = new byte[64 * 1024];
+        new Random(42).nextBytes(chunk);
+        try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+            for (int written = 0; written < size; written += chunk.length) {
+                out.write(chunk, 0, Math.min(chunk.length, size - written));
+            }
+        }
+        file.deleteOnExit();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        client.stop();
+        BenchmarkServers.stop(service);
+        Files.deleteIfExists(directory.resolve("file.bin"));
+        Files.deleteIfExists(directory);
+    }
+
+    @Benchmark
+    public long get() throws Exception {
+        CompletableFuture<Long> done = new CompletableFuture<>();
+        client.newRequest(uri).send(new Response.Listener.Adapter() {
+            private long received;
+
+            @Override
+            public void onContent(Response response, ByteBuffer content) {
+                received += content.remaining();
+            }
+
+            @Override
+            public void onComplete(Result result) {
+                if (result.isSucceeded() && result.getResponse().getStatus() == 200) {
+                    done.complete(received);
+                } else {
+                    done.completeExceptionally(new IOException("failed: " + result));
+                }
+            }
+        });
+        long received = done.get(60, TimeUnit.SECONDS);
+        if (received != fileSize) {
+            throw new IOException("expected " + fileSize + " bytes, got " + received);
+        }
+        return received;
+    }
+}
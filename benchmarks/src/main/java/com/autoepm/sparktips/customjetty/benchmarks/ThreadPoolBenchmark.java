@@ -0,0 +1,106 @@
+/*
+ * Copyright 2019 Giacomo Lacava
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package com.autoepm.sparktips.customjetty.benchmarks;
+
+import com.autoepm.sparktips.customjetty.MyCustomEmbeddedServerFactory;
+import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.client.api.ContentResponse;
+import org.openjdk.jmh.annotations.*;
+import spark.Service;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The same routes on the thread pool configurations MyCustomJettyThreadPoolConfigFactory can build.
+ * "cpu" answers straight away, "blocking" sleeps for a few milliseconds like a call to a database would,
+ * which is where the pool size starts to matter.
+ * "virtual" needs java 21, run it with e.g. -p pool=virtual on a newer JDK.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 10)
+@Fork(1)
+@Threads(64)
+public class ThreadPoolBenchmark {
+
+    private static final int MAX_THREADS = 16;
+
+    @Param({"default", "queued", "autoscaling"})
+    public String pool;
+
+    @Param({"cpu", "blocking"})
+    public String work;
+
+    private Service service;
+    private HttpClient client;
+    private String uri;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        MyCustomEmbeddedServerFactory factory = new MyCustomEmbeddedServerFactory();
+        boolean sized;
+        switch (pool) {
+            case "default":
+                // nothing from spark, so Jetty's own QueuedThreadPool (200 threads)
+                sized = false;
+                break;
+            case "queued":
+                sized = true;
+                break;
+            case "autoscaling":
+                factory.withAutoscaling(MAX_THREADS * 16);
+                sized = true;
+                break;
+            case "virtual":
+                factory.withVirtualThreads(true);
+                sized = false;
+                break;
+            default:
+                throw new IllegalArgumentException("unknown pool " + pool);
+        }
+        service = BenchmarkServers.start(factory, s -> {
+            if (sized) {
+                s.threadPool(MAX_THREADS);
+            }
+            s.get("/cpu", (req, res) -> "Hello World");
+            s.get("/blocking", (req, res) -> {
+                Thread.sleep(5);
+                return "Hello World";
+            });
+        });
+        uri = "http://localhost:" + service.port() + "/" + work;
+
+        client = new HttpClient();
+        client.setMaxConnectionsPerDestination(1024);
+        client.start();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        client.stop();
+        BenchmarkServers.stop(service);
+    }
+
+    @Benchmark
+    public int get() throws Exception {
+        ContentResponse response = client.GET(uri);
+        return response.getStatus();
+    }
+}
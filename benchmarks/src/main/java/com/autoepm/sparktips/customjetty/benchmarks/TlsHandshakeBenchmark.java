@@ -0,0 +1,99 @@
+/*
+ * Copyright 2019 Giacomo Lacava
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package com.autoepm.sparktips.customjetty.benchmarks;
+
+import com.autoepm.sparktips.customjetty.ConnectorOptions;
+import com.autoepm.sparktips.customjetty.MyCustomEmbeddedServerFactory;
+import com.autoepm.sparktips.customjetty.SSLOptions;
+import org.openjdk.jmh.annotations.*;
+import spark.Service;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Handshakes per second against the secure connector, one request per connection.
+ * "full" uses a fresh client context every time so nothing can be resumed,
+ * "resumed" shares the client context so its session cache (or tickets) can be reused.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 10)
+// tickets are a JVM-wide switch, so the forked JVM gets them from the command line
+@Fork(value = 1, jvmArgsAppend = "-Djdk.tls.server.enableSessionTicketExtension=true")
+@Threads(8)
+public class TlsHandshakeBenchmark {
+
+    private static final byte[] REQUEST = "GET /hello HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n"
+            .getBytes(StandardCharsets.US_ASCII);
+
+    @Param({"full", "resumed"})
+    public String handshake;
+
+    @Param({"MODERN", "INTERMEDIATE"})
+    public SSLOptions.Profile profile;
+
+    private Service service;
+    private SSLContext sharedContext;
+    private int port;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        String keystore = BenchmarkServers.selfSignedKeystore();
+        MyCustomEmbeddedServerFactory factory = new MyCustomEmbeddedServerFactory()
+                .withConnectorOptions(new ConnectorOptions()
+                        .withTlsProfile(profile)
+                        .withTlsSessionCache(10000, 3600));
+        service = BenchmarkServers.start(factory, s -> {
+            s.secure(keystore, BenchmarkServers.KEYSTORE_PASSWORD, null, null);
+            s.get("/hello", (req, res) -> "Hello World");
+        });
+        port = service.port();
+        sharedContext = BenchmarkServers.trustAllContext();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        BenchmarkServers.stop(service);
+    }
+
+    @Benchmark
+    public int handshake() throws Exception {
+        SSLContext context = "resumed".equals(handshake) ? sharedContext : BenchmarkServers.trustAllContext();
+        try (SSLSocket socket = (SSLSocket) context.getSocketFactory().createSocket("localhost", port)) {
+            OutputStream out = socket.getOutputStream();
+            out.write(REQUEST);
+            out.flush();
+            // read the whole response, so the client also sees any session ticket
+            InputStream in = socket.getInputStream();
+            byte[] buffer = new byte[1024];
+            int total = 0;
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                total += read;
+            }
+            return total;
+        }
+    }
+}
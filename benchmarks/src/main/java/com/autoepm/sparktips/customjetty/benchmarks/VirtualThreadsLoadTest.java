@@ -0,0 +1,105 @@
+/*
+ * Copyright 2019 Giacomo Lacava
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package com.autoepm.sparktips.customjetty.benchmarks;
+
+import com.autoepm.sparktips.customjetty.MyCustomEmbeddedServerFactory;
+import com.autoepm.sparktips.customjetty.VirtualThreadPool;
+import org.eclipse.jetty.client.HttpClient;
+import spark.Service;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps a fixed number of slow (blocking sleep) requests in flight and reports completed requests/sec.
+ * With a queued pool throughput is capped at maxThreads / latency, with virtual threads it should
+ * track the number of requests in flight instead.
+ *
+ * Usage: java -cp target/benchmarks.jar com.autoepm.sparktips.customjetty.benchmarks.VirtualThreadsLoadTest
+ * [queued|virtual] [concurrency, default 10000] [seconds, default 30] [route latency millis, default 200]
+ * You'll probably need to raise the open files limit (ulimit -n) for the default concurrency.
+ */
+public class VirtualThreadsLoadTest {
+
+    public static void main(String[] args) throws Exception {
+        String mode = args.length > 0 ? args[0] : "virtual";
+        int concurrency = args.length > 1 ? Integer.parseInt(args[1]) : 10000;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 30;
+        long latencyMillis = args.length > 3 ? Long.parseLong(args[3]) : 200;
+
+        MyCustomEmbeddedServerFactory factory = new MyCustomEmbeddedServerFactory();
+        if ("virtual".equals(mode)) {
+            if (!VirtualThreadPool.isSupported()) {
+                System.err.println("Virtual threads need java 21 or later, this is " + System.getProperty("java.version"));
+                System.exit(1);
+            }
+            factory.withVirtualThreads(true);
+        }
+        Service service = BenchmarkServers.start(factory, s -> {
+            s.threadPool(200);
+            s.get("/slow", (req, res) -> {
+                // stands in for a blocking JDBC or HTTP call
+                Thread.sleep(latencyMillis);
+                return "done";
+            });
+        });
+
+        HttpClient client = new HttpClient();
+        client.setMaxConnectionsPerDestination(concurrency);
+        client.setMaxRequestsQueuedPerDestination(concurrency * 2);
+        client.setIdleTimeout(TimeUnit.MINUTES.toMillis(1));
+        client.start();
+
+        String uri = "http://localhost:" + service.port() + "/slow";
+        Semaphore inFlight = new Semaphore(concurrency);
+        AtomicLong completed = new AtomicLong();
+        AtomicLong failed = new AtomicLong();
+        long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        long lastReport = System.nanoTime();
+        long lastCompleted = 0;
+        while (System.nanoTime() < end) {
+            if (!inFlight.tryAcquire(100, TimeUnit.MILLISECONDS)) {
+                continue;
+            }
+            client.newRequest(uri).send(result -> {
+                if (result.isSucceeded() && result.getResponse().getStatus() == 200) {
+                    completed.incrementAndGet();
+                } else {
+                    failed.incrementAndGet();
+                }
+                inFlight.release();
+            });
+            long now = System.nanoTime();
+            if (now - lastReport >= TimeUnit.SECONDS.toNanos(1)) {
+                long done = completed.get();
+                System.out.printf("%s: %d req/s, %d in flight, %d active threads, %d failed%n",
+                        mode, done - lastCompleted, concurrency - inFlight.availablePermits(),
+                        service.activeThreadCount(), failed.get());
+                lastReport = now;
+                lastCompleted = done;
+            }
+        }
+        inFlight.acquire(concurrency);
+        System.out.printf("%s: %.1f req/s average over %ds, %d failed%n",
+                mode, completed.get() / (double) seconds, seconds, failed.get());
+
+        client.stop();
+        BenchmarkServers.stop(service);
+    }
+}
@@ -0,0 +1,413 @@
+/*
+ * Copyright 2019 Giacomo Lacava
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package com.autoepm.sparktips.customjetty;
+
+import org.eclipse.jetty.http.HttpHeader;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.RequestLog;
+import org.eclipse.jetty.server.Response;
+import org.eclipse.jetty.util.DateCache;
+import org.eclipse.jetty.util.annotation.ManagedAttribute;
+import org.eclipse.jetty.util.annotation.ManagedObject;
+import org.eclipse.jetty.util.component.AbstractLifeCycle;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Access log that keeps disk I/O off the request threads. Jetty calls log() as each request completes;
+ * that only claims a slot in a pre-allocated ring buffer and copies a handful of fields (references
+ * to strings the request already has, no formatting). One background thread formats whatever is in
+ * the ring in batches and writes it to the file, rotating by size and/or age.
+ * If the writer can't keep up and the ring is full, records are dropped and counted: the log never
+ * slows requests down. Lines are NCSA combined format plus the latency in milliseconds.
+ * Register it with MyCustomEmbeddedServerFactory.withAccessLog().
+ **/
+@ManagedObject("Access log")
+public class AccessLog extends AbstractLifeCycle implements RequestLog, RequestMetrics.Exporter {
+    private final static Logger logger = LoggerFactory.getLogger(AccessLog.class);
+
+    private static final int BATCH_BYTES = 64 * 1024;
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final Path file;
+    private int ringSize = 16384;
+    private int sampleOneIn = 1;
+    private long maxFileBytes = -1;
+    private long maxFileAgeMillis = -1;
+    private int maxFiles = 10;
+
+    private Slot[] ring;
+    private int mask;
+    // next sequence a request thread will claim, and next one the writer will read
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+
+    private final LongAdder logged = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder sampledOut = new LongAdder();
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLong writeErrors = new AtomicLong();
+    private final AtomicLong rotations = new AtomicLong();
+
+    private volatile Thread writer;
+    private volatile boolean running;
+
+    public AccessLog(Path file) {
+        this.file = file;
+    }
+
+    /**
+     * How many records can wait for the writer, rounded up to a power of two.
+     * Each slot is a few dozen bytes plus the strings it points to while waiting.
+     */
+    public AccessLog withRingSize(int ringSize) {
+        this.ringSize = ringSize;
+        return this;
+    }
+
+    /**
+     * Only log about one request in every oneIn. 5xx responses are always logged.
+     */
+    public AccessLog withSampling(int oneIn) {
+        this.sampleOneIn = Math.max(1, oneIn);
+        return this;
+    }
+
+    /**
+     * Start a new file once the current one is over maxBytes, or older than maxAgeMillis (-1 for either
+     * means no limit), keeping at most maxFiles old ones next to it.
+     */
+    public AccessLog withRotation(long maxBytes, long maxAgeMillis, int maxFiles) {
+        this.maxFileBytes = maxBytes;
+        this.maxFileAgeMillis = maxAgeMillis;
+        this.maxFiles = maxFiles;
+        return this;
+    }
+
+    @Override
+    protected void doStart() throws Exception {
+        int size = Integer.highestOneBit(Math.max(2, ringSize - 1)) << 1;
+        ring = new Slot[size];
+        for (int i = 0; i < size; i++) {
+            ring[i] = new Slot(i - size);
+        }
+        mask = size - 1;
+        head.set(0);
+        tail.set(0);
+        Path parent = file.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        running = true;
+        Thread thread = new Thread(this::writeLoop, "access-log");
+        thread.setDaemon(true);
+        writer = thread;
+        thread.start();
+        super.doStart();
+    }
+
+    @Override
+    protected void doStop() throws Exception {
+        // the writer drains what's already in the ring before it exits
+        running = false;
+        Thread thread = writer;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+            thread.join(TimeUnit.SECONDS.toMillis(5));
+        }
+        writer = null;
+        super.doStop();
+    }
+
+    @Override
+    public void log(Request request, Response response) {
+        if (!running) {
+            return;
+        }
+        int status = response.getCommittedMetaData().getStatus();
+        if (sampleOneIn > 1 && status < 500 && ThreadLocalRandom.current().nextInt(sampleOneIn) != 0) {
+            sampledOut.increment();
+            return;
+        }
+        long sequence;
+        do {
+            sequence = head.get();
+            if (sequence - tail.get() >= ring.length) {
+                dropped.increment();
+                return;
+            }
+        } while (!head.compareAndSet(sequence, sequence + 1));
+
+        Slot slot = ring[(int) (sequence & mask)];
+        slot.timestamp = request.getTimeStamp();
+        slot.latencyMillis = System.currentTimeMillis() - slot.timestamp;
+        slot.status = status;
+        slot.bytes = response.getHttpChannel().getBytesWritten();
+        slot.remote = request.getRemoteAddr();
+        slot.method = request.getMethod();
+        slot.uri = request.getOriginalURI();
+        slot.protocol = request.getProtocol();
+        slot.referer = request.getHeader(HttpHeader.REFERER.asString());
+        slot.userAgent = request.getHeader(HttpHeader.USER_AGENT.asString());
+        // publishing the sequence is what hands the slot over to the writer
+        slot.published = sequence;
+        logged.increment();
+    }
+
+    private void writeLoop() {
+        DateCache dates = new DateCache("dd/MMM/yyyy:HH:mm:ss Z", Locale.US, TimeZone.getDefault());
+        StringBuilder line = new StringBuilder(512);
+        byte[] batch = new byte[BATCH_BYTES];
+        int batched = 0;
+        LogFile out = null;
+        try {
+            out = new LogFile();
+            while (true) {
+                long sequence = tail.get();
+                Slot slot = ring[(int) (sequence & mask)];
+                if (slot.published != sequence) {
+                    // ring empty (or the next slot still being filled): write what we have, then wait
+                    if (batched > 0) {
+                        out.write(batch, batched);
+                        batched = 0;
+                    }
+                    if (!running && sequence == head.get()) {
+                        break;
+                    }
+                    LockSupport.parkNanos(IDLE_PARK_NANOS);
+                    continue;
+                }
+
+                line.setLength(0);
+                slot.format(line, dates);
+                // strings can go now, the slot is free once tail moves past it
+                slot.clear();
+                tail.lazySet(sequence + 1);
+
+                byte[] bytes = line.toString().getBytes(StandardCharsets.UTF_8);
+                if (batched + bytes.length > batch.length) {
+                    out.write(batch, batched);
+                    batched = 0;
+                }
+                if (bytes.length > batch.length) {
+                    out.write(bytes, bytes.length);
+                } else {
+                    System.arraycopy(bytes, 0, batch, batched, bytes.length);
+                    batched += bytes.length;
+                }
+                written.incrementAndGet();
+            }
+        } catch (Throwable x) {
+            logger.error("access log writer stopped", x);
+        } finally {
+            if (out != null) {
+                out.close();
+            }
+        }
+    }
+
+    /**
+     * The file being written, and rotation.
+     */
+    private class LogFile {
+        private OutputStream stream;
+        private long size;
+        private long openedAt;
+
+        private LogFile() throws IOException {
+            open();
+        }
+
+        private void open() throws IOException {
+            stream = Files.newOutputStream(file, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            size = Files.size(file);
+            openedAt = System.currentTimeMillis();
+        }
+
+        private void write(byte[] bytes, int length) {
+            try {
+                if ((maxFileBytes > 0 && size > 0 && size + length > maxFileBytes)
+                        || (maxFileAgeMillis > 0 && System.currentTimeMillis() - openedAt > maxFileAgeMillis)) {
+                    rotate();
+                }
+                stream.write(bytes, 0, length);
+                stream.flush();
+                size += length;
+            } catch (IOException e) {
+                // keep going, the disk might come back
+                if (writeErrors.getAndIncrement() == 0) {
+                    logger.error("can't write access log {}", file, e);
+                }
+            }
+        }
+
+        private void rotate() throws IOException {
+            stream.close();
+            String suffix = new SimpleDateFormat("yyyyMMdd-HHmmss.SSS").format(new Date());
+            Files.move(file, file.resolveSibling(file.getFileName() + "." + suffix), StandardCopyOption.REPLACE_EXISTING);
+            rotations.incrementAndGet();
+            deleteOldFiles();
+            open();
+        }
+
+        private void deleteOldFiles() throws IOException {
+            List<Path> old = new ArrayList<>();
+            try (DirectoryStream<Path> siblings = Files.newDirectoryStream(file.toAbsolutePath().getParent(), file.getFileName() + ".*")) {
+                for (Path sibling : siblings) {
+                    old.add(sibling);
+                }
+            }
+            // the suffix sorts by time
+            Collections.sort(old);
+            for (int i = 0; i < old.size() - maxFiles; i++) {
+                Files.deleteIfExists(old.get(i));
+            }
+        }
+
+        private void close() {
+            try {
+                stream.close();
+            } catch (IOException e) {
+                logger.warn("can't close access log {}", file, e);
+            }
+        }
+    }
+
+    @ManagedAttribute("records handed to the writer")
+    public long getLogged() {
+        return logged.sum();
+    }
+
+    @ManagedAttribute("records written to the file")
+    public long getWritten() {
+        return written.get();
+    }
+
+    @ManagedAttribute("records dropped because the ring was full")
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    @ManagedAttribute("records skipped by sampling")
+    public long getSampledOut() {
+        return sampledOut.sum();
+    }
+
+    @ManagedAttribute("records waiting for the writer")
+    public long getQueued() {
+        return head.get() - tail.get();
+    }
+
+    @ManagedAttribute("failed writes")
+    public long getWriteErrors() {
+        return writeErrors.get();
+    }
+
+    @ManagedAttribute("files rotated")
+    public long getRotations() {
+        return rotations.get();
+    }
+
+    @Override
+    public void writePrometheus(Writer out) throws IOException {
+        out.write("# HELP spark_access_log_records_total Access log records, by what happened to them.\n");
+        out.write("# TYPE spark_access_log_records_total counter\n");
+        out.write("spark_access_log_records_total{outcome=\"written\"} " + getWritten() + "\n");
+        out.write("spark_access_log_records_total{outcome=\"dropped\"} " + getDropped() + "\n");
+        out.write("spark_access_log_records_total{outcome=\"sampled_out\"} " + getSampledOut() + "\n");
+        out.write("# HELP spark_access_log_queued Access log records waiting to be written.\n");
+        out.write("# TYPE spark_access_log_queued gauge\n");
+        out.write("spark_access_log_queued " + getQueued() + "\n");
+    }
+
+    /**
+     * One record. Filled by a request thread, then read and cleared by the writer.
+     */
+    private static final class Slot {
+        // sequence of the record in here, written last by the request thread
+        private volatile long published;
+        private long timestamp;
+        private long latencyMillis;
+        private int status;
+        private long bytes;
+        private String remote;
+        private String method;
+        private String uri;
+        private String protocol;
+        private String referer;
+        private String userAgent;
+
+        private Slot(long published) {
+            this.published = published;
+        }
+
+        private void format(StringBuilder line, DateCache dates) {
+            line.append(remote == null ? "-" : remote).append(" - - [").append(dates.format(timestamp)).append("] \"")
+                    .append(method).append(' ').append(uri).append(' ').append(protocol).append("\" ")
+                    .append(status).append(' ').append(bytes).append(' ');
+            quoted(line, referer).append(' ');
+            quoted(line, userAgent).append(' ').append(latencyMillis).append('\n');
+        }
+
+        private static StringBuilder quoted(StringBuilder line, String value) {
+            if (value == null) {
+                return line.append("\"-\"");
+            }
+            line.append('"');
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                if (c == '"' || c == '\\') {
+                    line.append('\\');
+                }
+                line.append(c < ' ' ? '?' : c);
+            }
+            return line.append('"');
+        }
+
+        private void clear() {
+            remote = null;
+            method = null;
+            uri = null;
+            protocol = null;
+            referer = null;
+            userAgent = null;
+        }
+    }
+}
@@ -0,0 +1,474 @@
+/*
+ * Copyright 2019 Giacomo Lacava
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package com.autoepm.sparktips.customjetty;
+
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.handler.HandlerWrapper;
+import org.eclipse.jetty.util.annotation.ManagedAttribute;
+import org.eclipse.jetty.util.annotation.ManagedObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Caps how many requests run at once. Whatever is over the limit waits, suspended, in a small
+ * bounded queue; whatever doesn't fit in the queue (or waits too long) gets an immediate
+ * 503 with a Retry-After header, instead of sitting in the thread pool queue until the client gives up.
+ * Requests can be given a priority by path prefix: higher priorities are resumed first and,
+ * when the queue is full, push out the lowest priority request that is waiting.
+ * The limit is either fixed or adapts to latency (AIMD), see the Limit implementations below.
+ **/
+@ManagedObject("Admission control")
+public class AdmissionControlHandler extends HandlerWrapper implements RequestMetrics.Exporter {
+    private final static Logger logger = LoggerFactory.getLogger(AdmissionControlHandler.class);
+
+    private static final String QUEUED = "queued";
+    private static final String ADMITTED = "admitted";
+    private static final String RUNNING = "running";
+
+    private final String stateAttribute = AdmissionControlHandler.class.getName() + "@" + Integer.toHexString(hashCode());
+    private final Limit limit;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    // priority -> suspended requests, highest priority first
+    private final TreeMap<Integer, ArrayDeque<AsyncContext>> queues = new TreeMap<>((a, b) -> Integer.compare(b, a));
+    // path prefix -> priority, longest prefix first
+    private final TreeMap<String, Integer> priorities = new TreeMap<>((a, b) -> a.length() != b.length() ? b.length() - a.length() : a.compareTo(b));
+    private int queued = 0;
+
+    private int maxQueued = 64;
+    private long maxQueueWaitMillis = 1000;
+    private int retryAfterSeconds = 1;
+
+    private final AtomicLong admittedCount = new AtomicLong();
+    private final AtomicLong queuedCount = new AtomicLong();
+    private final AtomicLong rejectedCount = new AtomicLong();
+    private final AtomicLong timedOutCount = new AtomicLong();
+    private final AtomicLong evictedCount = new AtomicLong();
+
+    public AdmissionControlHandler(Limit limit) {
+        this.limit = limit;
+    }
+
+    /**
+     * How many requests may wait for a slot. Keep this small: anything that waits here
+     * for long is only going to time out on the client side anyway.
+     */
+    public AdmissionControlHandler withMaxQueued(int maxQueued) {
+        this.maxQueued = maxQueued;
+        return this;
+    }
+
+    public AdmissionControlHandler withMaxQueueWaitMillis(long maxQueueWaitMillis) {
+        this.maxQueueWaitMillis = maxQueueWaitMillis;
+        return this;
+    }
+
+    public AdmissionControlHandler withRetryAfterSeconds(int retryAfterSeconds) {
+        this.retryAfterSeconds = retryAfterSeconds;
+        return this;
+    }
+
+    /**
+     * Requests whose path starts with pathPrefix get this priority. Anything unmatched is 0,
+     * so use positive numbers for e.g. health checks and negative ones for batch endpoints.
+     */
+    public AdmissionControlHandler withPriority(String pathPrefix, int priority) {
+        synchronized (priorities) {
+            priorities.put(pathPrefix, priority);
+        }
+        return this;
+    }
+
+    @Override
+    public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response) throws IOException, ServletException {
+        Object state = request.getAttribute(stateAttribute);
+        if (state == null) {
+            if (tryAcquire()) {
+                request.setAttribute(stateAttribute, ADMITTED);
+                admitted(target, baseRequest, request, response);
+            } else if (!suspend(request, priorityOf(target))) {
+                rejectedCount.incrementAndGet();
+                reject(response);
+                baseRequest.setHandled(true);
+            } else {
+                baseRequest.setHandled(true);
+            }
+        } else if (ADMITTED.equals(state)) {
+            // resumed from the queue by release(), the slot is already ours
+            admitted(target, baseRequest, request, response);
+        } else if (RUNNING.equals(state)) {
+            // async re-dispatch of a request that already holds a slot, the ReleaseListener will free it
+            super.handle(target, baseRequest, request, response);
+        } else {
+            // suspended and not resumed by us (shouldn't happen), don't run it twice
+            baseRequest.setHandled(true);
+        }
+    }
+
+    private void admitted(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response) throws IOException, ServletException {
+        admittedCount.incrementAndGet();
+        long start = System.nanoTime();
+        boolean async = false;
+        try {
+            super.handle(target, baseRequest, request, response);
+            if (request.isAsyncStarted()) {
+                // something further down went async, hold the slot until it's really done
+                request.getAsyncContext().addListener(new ReleaseListener(start));
+                request.setAttribute(stateAttribute, RUNNING);
+                async = true;
+            }
+        } finally {
+            if (!async) {
+                release(start);
+            }
+        }
+    }
+
+    private boolean tryAcquire() {
+        while (true) {
+            int current = inFlight.get();
+            if (current >= limit.getLimit()) {
+                return false;
+            }
+            if (inFlight.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    private void release(long start) {
+        inFlight.decrementAndGet();
+        limit.onSample(System.nanoTime() - start, inFlight.get());
+        resumeQueued();
+    }
+
+    private int priorityOf(String target) {
+        synchronized (priorities) {
+            for (Map.Entry<String, Integer> entry : priorities.entrySet()) {
+                if (target.startsWith(entry.getKey())) {
+                    return entry.getValue();
+                }
+            }
+        }
+        return 0;
+    }
+
+    private boolean suspend(HttpServletRequest request, int priority) {
+        AsyncContext evicted = null;
+        AsyncContext context;
+        synchronized (queues) {
+            if (queued >= maxQueued) {
+                // full: only get in if there's someone less important to push out
+                Map.Entry<Integer, ArrayDeque<AsyncContext>> lowest = queues.lastEntry();
+                if (lowest == null || lowest.getKey() >= priority) {
+                    return false;
+                }
+                evicted = lowest.getValue().pollLast();
+                if (lowest.getValue().isEmpty()) {
+                    queues.remove(lowest.getKey());
+                }
+                queued--;
+            }
+            request.setAttribute(stateAttribute, QUEUED);
+            context = request.startAsync();
+            context.setTimeout(maxQueueWaitMillis);
+            context.addListener(new QueueTimeoutListener(priority));
+            queues.computeIfAbsent(priority, p -> new ArrayDeque<>()).addLast(context);
+            queued++;
+        }
+        queuedCount.incrementAndGet();
+        if (evicted != null) {
+            evictedCount.incrementAndGet();
+            rejectSuspended(evicted);
+        }
+        // a slot might have been freed while we were queueing up
+        resumeQueued();
+        return true;
+    }
+
+    private void resumeQueued() {
+        while (tryAcquire()) {
+            AsyncContext next;
+            synchronized (queues) {
+                Map.Entry<Integer, ArrayDeque<AsyncContext>> highest = queues.firstEntry();
+                next = highest == null ? null : highest.getValue().pollFirst();
+                if (highest != null && highest.getValue().isEmpty()) {
+                    queues.remove(highest.getKey());
+                }
+                if (next != null) {
+                    queued--;
+                }
+            }
+            if (next == null) {
+                inFlight.decrementAndGet();
+                return;
+            }
+            try {
+                next.getRequest().setAttribute(stateAttribute, ADMITTED);
+                next.dispatch();
+            } catch (IllegalStateException e) {
+                // it timed out (or the client went away) in the meantime
+                inFlight.decrementAndGet();
+            }
+        }
+    }
+
+    private boolean dequeue(AsyncContext context, int priority) {
+        synchronized (queues) {
+            ArrayDeque<AsyncContext> queue = queues.get(priority);
+            if (queue != null && queue.remove(context)) {
+                if (queue.isEmpty()) {
+                    queues.remove(priority);
+                }
+                queued--;
+                return true;
+            }
+            return false;
+        }
+    }
+
+    private void reject(HttpServletResponse response) {
+        if (!response.isCommitted()) {
+            response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            response.setHeader("Retry-After", Integer.toString(retryAfterSeconds));
+            response.setContentLength(0);
+        }
+    }
+
+    private void rejectSuspended(AsyncContext context) {
+        try {
+            reject((HttpServletResponse) context.getResponse());
+            context.complete();
+        } catch (IllegalStateException e) {
+            logger.debug("suspended request already gone", e);
+        }
+    }
+
+    @ManagedAttribute("current concurrency limit")
+    public int getLimit() {
+        return limit.getLimit();
+    }
+
+    @ManagedAttribute("requests running now")
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    @ManagedAttribute("requests waiting for a slot now")
+    public int getQueued() {
+        synchronized (queues) {
+            return queued;
+        }
+    }
+
+    @ManagedAttribute("requests that were let through")
+    public long getAdmittedCount() {
+        return admittedCount.get();
+    }
+
+    @ManagedAttribute("requests that had to wait for a slot")
+    public long getQueuedCount() {
+        return queuedCount.get();
+    }
+
+    @ManagedAttribute("requests rejected straight away because the queue was full")
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    @ManagedAttribute("requests rejected after waiting too long")
+    public long getTimedOutCount() {
+        return timedOutCount.get();
+    }
+
+    @ManagedAttribute("queued requests pushed out by higher priority ones")
+    public long getEvictedCount() {
+        return evictedCount.get();
+    }
+
+    @Override
+    public void writePrometheus(Writer out) throws IOException {
+        out.write("# HELP spark_admission_limit Current concurrency limit.\n");
+        out.write("# TYPE spark_admission_limit gauge\n");
+        out.write("spark_admission_limit " + getLimit() + "\n");
+        out.write("# HELP spark_admission_requests Requests holding or waiting for a slot now, by state.\n");
+        out.write("# TYPE spark_admission_requests gauge\n");
+        out.write("spark_admission_requests{state=\"running\"} " + getInFlight() + "\n");
+        out.write("spark_admission_requests{state=\"queued\"} " + getQueued() + "\n");
+        out.write("# HELP spark_admission_requests_total Requests seen by admission control, by outcome.\n");
+        out.write("# TYPE spark_admission_requests_total counter\n");
+        out.write("spark_admission_requests_total{outcome=\"admitted\"} " + getAdmittedCount() + "\n");
+        out.write("spark_admission_requests_total{outcome=\"queued\"} " + getQueuedCount() + "\n");
+        out.write("spark_admission_requests_total{outcome=\"rejected\"} " + getRejectedCount() + "\n");
+        out.write("spark_admission_requests_total{outcome=\"timed_out\"} " + getTimedOutCount() + "\n");
+        out.write("spark_admission_requests_total{outcome=\"evicted\"} " + getEvictedCount() + "\n");
+    }
+
+    private class QueueTimeoutListener implements AsyncListener {
+        private final int priority;
+
+        private QueueTimeoutListener(int priority) {
+            this.priority = priority;
+        }
+
+        @Override
+        public void onTimeout(AsyncEvent event) {
+            AsyncContext context = event.getAsyncContext();
+            if (dequeue(context, priority)) {
+                timedOutCount.incrementAndGet();
+                rejectSuspended(context);
+            }
+        }
+
+        @Override
+        public void onError(AsyncEvent event) {
+            dequeue(event.getAsyncContext(), priority);
+        }
+
+        @Override
+        public void onComplete(AsyncEvent event) {
+        }
+
+        @Override
+        public void onStartAsync(AsyncEvent event) {
+        }
+    }
+
+    private class ReleaseListener implements AsyncListener {
+        private final long start;
+
+        private ReleaseListener(long start) {
+            this.start = start;
+        }
+
+        @Override
+        public void onComplete(AsyncEvent event) {
+            release(start);
+        }
+
+        @Override
+        public void onTimeout(AsyncEvent event) {
+        }
+
+        @Override
+        public void onError(AsyncEvent event) {
+        }
+
+        @Override
+        public void onStartAsync(AsyncEvent event) {
+            // the request went async again, keep listening
+            event.getAsyncContext().addListener(this);
+        }
+    }
+
+    /**
+     * How many requests may run at once.
+     */
+    public interface Limit {
+
+        int getLimit();
+
+        /**
+         * Called whenever a request finishes, with how long it ran and how many are still running.
+         */
+        void onSample(long latencyNanos, int inFlight);
+    }
+
+    /**
+     * A limit that never changes.
+     */
+    public static class FixedLimit implements Limit {
+        private final int limit;
+
+        public FixedLimit(int limit) {
+            this.limit = limit;
+        }
+
+        @Override
+        public int getLimit() {
+            return limit;
+        }
+
+        @Override
+        public void onSample(long latencyNanos, int inFlight) {
+        }
+    }
+
+    /**
+     * Additive increase, multiplicative decrease: every request that finishes within the latency
+     * target while the limit is actually being used nudges the limit up (by about one per
+     * "round" of requests), a request over target cuts it by the backoff ratio. Requests
+     * finish in bursts, so it backs off at most once per round (one sample per slot in the limit),
+     * otherwise a single slow patch would collapse the limit straight to the minimum.
+     */
+    public static class AimdLimit implements Limit {
+        private final int minLimit;
+        private final int maxLimit;
+        private final long latencyTargetNanos;
+        private final double backoffRatio;
+        private double limit;
+        // samples seen since the last backoff
+        private int sinceBackoff;
+
+        public AimdLimit(int initialLimit, int minLimit, int maxLimit, long latencyTargetMillis) {
+            this(initialLimit, minLimit, maxLimit, latencyTargetMillis, 0.9);
+        }
+
+        public AimdLimit(int initialLimit, int minLimit, int maxLimit, long latencyTargetMillis, double backoffRatio) {
+            this.limit = initialLimit;
+            this.minLimit = minLimit;
+            this.maxLimit = maxLimit;
+            this.latencyTargetNanos = latencyTargetMillis * 1_000_000L;
+            this.backoffRatio = backoffRatio;
+            this.sinceBackoff = initialLimit;
+        }
+
+        @Override
+        public synchronized int getLimit() {
+            return (int) limit;
+        }
+
+        @Override
+        public synchronized void onSample(long latencyNanos, int inFlight) {
+            sinceBackoff++;
+            if (latencyNanos > latencyTargetNanos) {
+                // the rest of this round was already in flight when we last backed off
+                if (sinceBackoff >= limit) {
+                    limit = Math.max(minLimit, limit * backoffRatio);
+                    sinceBackoff = 0;
+                }
+            } else if (inFlight * 2 >= limit) {
+                // no point raising a limit nobody is getting close to
+                limit = Math.min(maxLimit, limit + 1.0 / limit);
+            }
+        }
+    }
+}
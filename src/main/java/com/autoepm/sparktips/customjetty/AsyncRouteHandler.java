@@ -0,0 +1,385 @@
+/*
+ * Copyright 2019 Giacomo Lacava
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package com.autoepm.sparktips.customjetty;
+
+import org.eclipse.jetty.server.HttpOutput;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.handler.HandlerWrapper;
+import org.eclipse.jetty.util.Callback;
+import org.eclipse.jetty.util.annotation.ManagedAttribute;
+import org.eclipse.jetty.util.annotation.ManagedObject;
+import org.eclipse.jetty.util.thread.ScheduledExecutorScheduler;
+import org.eclipse.jetty.util.thread.Scheduler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import spark.HaltException;
+import spark.Route;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lets Spark routes return a CompletionStage without holding a Jetty thread while it runs.
+ * Wrap the route with async():
+ *
+ *     get("/quote", AsyncRouteHandler.async((req, res) -> httpClient.sendAsync(...).thenApply(...)));
+ *
+ * The route returns straight away, the request is suspended with servlet async, and when the stage
+ * completes its result (String, byte[], ByteBuffer, or anything else through toString(), like Spark does)
+ * is written without blocking and the request completed. Status and headers set on the Spark response
+ * before returning are kept. A stage that takes longer than the timeout gets a 503 and is cancelled,
+ * one that fails gets a 500 (or whatever a wrapped halt() asked for).
+ * Register it with MyCustomEmbeddedServerFactory.withAsyncRoutes(); without it, async routes still
+ * work but block a thread like any other route.
+ * Under a bulkhead the request is already suspended, so the bulkhead's AsyncContext is taken over
+ * (BulkheadHandler.takeOver()) and the bulkhead thread is free as soon as the route returns. A request
+ * someone else suspended can't be taken over, and the route waits for its stage as if unregistered.
+ **/
+@ManagedObject("Async routes")
+public class AsyncRouteHandler extends HandlerWrapper {
+    private final static Logger logger = LoggerFactory.getLogger(AsyncRouteHandler.class);
+
+    // shared with the static async() wrapper, so not per instance like other handlers
+    private static final String ENABLED_ATTRIBUTE = AsyncRouteHandler.class.getName() + ".enabled";
+    private static final String STAGE_ATTRIBUTE = AsyncRouteHandler.class.getName() + ".stage";
+
+    private final Scheduler scheduler = new ScheduledExecutorScheduler("async-route-timeouts", true);
+    private long timeoutMillis = 30000;
+    private int retryAfterSeconds = 1;
+
+    private final AtomicInteger pending = new AtomicInteger();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong timedOut = new AtomicLong();
+
+    public AsyncRouteHandler() {
+        addBean(scheduler);
+    }
+
+    /**
+     * A Spark route that answers later.
+     */
+    @FunctionalInterface
+    public interface AsyncRoute {
+        CompletionStage<?> handle(spark.Request request, spark.Response response) throws Exception;
+    }
+
+    /**
+     * Turns an AsyncRoute into something you can give to get(), post() and friends.
+     */
+    public static Route async(AsyncRoute route) {
+        return (request, response) -> {
+            CompletionStage<?> stage = route.handle(request, response);
+            if (request.raw().getAttribute(ENABLED_ATTRIBUTE) == null) {
+                // no AsyncRouteHandler in the chain, so there's nobody to finish the request later: wait here
+                try {
+                    return stage.toCompletableFuture().get();
+                } catch (ExecutionException e) {
+                    throw unwrap(e);
+                }
+            }
+            request.raw().setAttribute(STAGE_ATTRIBUTE, stage);
+            // spark writes this (nothing) and closes the stream, HoldingResponse keeps that from committing
+            return "";
+        };
+    }
+
+    /**
+     * How long a stage may take before the client gets a 503. 0 means no limit.
+     */
+    public AsyncRouteHandler withTimeoutMillis(long timeoutMillis) {
+        this.timeoutMillis = timeoutMillis;
+        return this;
+    }
+
+    public AsyncRouteHandler withRetryAfterSeconds(int retryAfterSeconds) {
+        this.retryAfterSeconds = retryAfterSeconds;
+        return this;
+    }
+
+    @Override
+    public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response) throws IOException, ServletException {
+        if (request.isAsyncStarted() && !BulkheadHandler.canTakeOver(request)) {
+            // there'd be nothing to suspend the request with later
+            super.handle(target, baseRequest, request, response);
+            return;
+        }
+        request.setAttribute(ENABLED_ATTRIBUTE, Boolean.TRUE);
+        HoldingResponse holding = new HoldingResponse(response, request);
+        try {
+            super.handle(target, baseRequest, request, holding);
+        } finally {
+            request.removeAttribute(ENABLED_ATTRIBUTE);
+        }
+
+        Object stage = request.getAttribute(STAGE_ATTRIBUTE);
+        if (!(stage instanceof CompletionStage)) {
+            return;
+        }
+        request.removeAttribute(STAGE_ATTRIBUTE);
+        suspend(baseRequest, request, (CompletionStage<?>) stage);
+    }
+
+    private void suspend(Request baseRequest, HttpServletRequest request, CompletionStage<?> stage) {
+        AsyncContext context = request.isAsyncStarted() ? BulkheadHandler.takeOver(request) : request.startAsync();
+        // Jetty's own async timeout would complete the request under a write that's still going,
+        // so the timeout is ours, and once the stage has answered it's left alone
+        context.setTimeout(0);
+        Deadline deadline = new Deadline(baseRequest, context, stage);
+        pending.incrementAndGet();
+        if (timeoutMillis > 0) {
+            deadline.task = scheduler.schedule(deadline::expire, timeoutMillis, TimeUnit.MILLISECONDS);
+        }
+        // from here on whoever claims the request first (completion or timeout) answers it
+        stage.whenComplete((result, error) -> {
+            if (!deadline.claim()) {
+                return;
+            }
+            if (error == null) {
+                send(baseRequest, context, result);
+            } else {
+                fail(baseRequest, context, error);
+            }
+        });
+    }
+
+    private void send(Request baseRequest, AsyncContext context, Object result) {
+        ByteBuffer body;
+        if (result == null) {
+            body = ByteBuffer.allocate(0);
+        } else if (result instanceof ByteBuffer) {
+            body = (ByteBuffer) result;
+        } else if (result instanceof byte[]) {
+            body = ByteBuffer.wrap((byte[]) result);
+        } else {
+            body = ByteBuffer.wrap(result.toString().getBytes(StandardCharsets.UTF_8));
+        }
+        // sendContent doesn't block, the callback runs once the last byte is out
+        HttpOutput out = baseRequest.getResponse().getHttpOutput();
+        out.sendContent(body, new Callback() {
+            @Override
+            public void succeeded() {
+                completed.incrementAndGet();
+                complete(context);
+            }
+
+            @Override
+            public void failed(Throwable x) {
+                failed.incrementAndGet();
+                logger.debug("async response for {} not sent", baseRequest.getRequestURI(), x);
+                complete(context);
+            }
+        });
+    }
+
+    private void fail(Request baseRequest, AsyncContext context, Throwable error) {
+        failed.incrementAndGet();
+        Throwable cause = unwrap(error);
+        HttpServletResponse response = baseRequest.getResponse();
+        if (cause instanceof HaltException) {
+            HaltException halt = (HaltException) cause;
+            if (!response.isCommitted()) {
+                response.setStatus(halt.statusCode());
+            }
+            if (halt.body() != null) {
+                send(baseRequest, context, halt.body());
+                return;
+            }
+        } else {
+            logger.warn("async route {} failed", baseRequest.getRequestURI(), cause);
+            if (!response.isCommitted()) {
+                response.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+            }
+        }
+        complete(context);
+    }
+
+    private static Exception unwrap(Throwable error) {
+        Throwable cause = error;
+        while ((cause instanceof CompletionException || cause instanceof ExecutionException) && cause.getCause() != null) {
+            cause = cause.getCause();
+        }
+        return cause instanceof Exception ? (Exception) cause : new CompletionException(cause);
+    }
+
+    private static void complete(AsyncContext context) {
+        try {
+            context.complete();
+        } catch (IllegalStateException e) {
+            // the client went away and Jetty finished it already
+            logger.debug("request already completed", e);
+        }
+    }
+
+    @ManagedAttribute("async requests waiting for their route")
+    public int getPending() {
+        return pending.get();
+    }
+
+    @ManagedAttribute("async requests answered")
+    public long getCompleted() {
+        return completed.get();
+    }
+
+    @ManagedAttribute("async requests whose route failed")
+    public long getFailed() {
+        return failed.get();
+    }
+
+    @ManagedAttribute("async requests that ran out of time")
+    public long getTimedOut() {
+        return timedOut.get();
+    }
+
+    private class Deadline {
+        private final Request baseRequest;
+        private final AsyncContext context;
+        private final CompletionStage<?> stage;
+        private final AtomicBoolean claimed = new AtomicBoolean();
+        private volatile Scheduler.Task task;
+
+        private Deadline(Request baseRequest, AsyncContext context, CompletionStage<?> stage) {
+            this.baseRequest = baseRequest;
+            this.context = context;
+            this.stage = stage;
+        }
+
+        private boolean claim() {
+            if (!claimed.compareAndSet(false, true)) {
+                return false;
+            }
+            pending.decrementAndGet();
+            Scheduler.Task task = this.task;
+            if (task != null) {
+                task.cancel();
+            }
+            return true;
+        }
+
+        private void expire() {
+            if (!claim()) {
+                // the stage got there first, its write completes the request
+                return;
+            }
+            timedOut.incrementAndGet();
+            HttpServletResponse response = baseRequest.getResponse();
+            if (!response.isCommitted()) {
+                response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+                response.setHeader("Retry-After", Integer.toString(retryAfterSeconds));
+                response.setContentLength(0);
+            }
+            try {
+                // nobody is waiting for the result any more, so stop whatever can be stopped
+                stage.toCompletableFuture().cancel(true);
+            } catch (UnsupportedOperationException e) {
+                logger.debug("stage can't be cancelled", e);
+            }
+            complete(context);
+        }
+    }
+
+    /**
+     * Spark flushes and closes the output stream after every route. For an async route that would
+     * commit an empty response, so once the route has handed over a stage both are skipped.
+     */
+    private static class HoldingResponse extends HttpServletResponseWrapper {
+        private final HttpServletRequest request;
+        private ServletOutputStream out;
+
+        private HoldingResponse(HttpServletResponse response, HttpServletRequest request) {
+            super(response);
+            this.request = request;
+        }
+
+        private boolean holding() {
+            return request.getAttribute(STAGE_ATTRIBUTE) != null;
+        }
+
+        @Override
+        public void flushBuffer() throws IOException {
+            if (!holding()) {
+                super.flushBuffer();
+            }
+        }
+
+        @Override
+        public ServletOutputStream getOutputStream() throws IOException {
+            if (out == null) {
+                out = new HoldingOutputStream(super.getOutputStream());
+            }
+            return out;
+        }
+
+        private class HoldingOutputStream extends ServletOutputStream {
+            private final ServletOutputStream delegate;
+
+            private HoldingOutputStream(ServletOutputStream delegate) {
+                this.delegate = delegate;
+            }
+
+            @Override
+            public void write(int b) throws IOException {
+                delegate.write(b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                delegate.write(b, off, len);
+            }
+
+            @Override
+            public void flush() throws IOException {
+                if (!holding()) {
+                    delegate.flush();
+                }
+            }
+
+            @Override
+            public void close() throws IOException {
+                if (!holding()) {
+                    delegate.close();
+                }
+            }
+
+            @Override
+            public boolean isReady() {
+                return delegate.isReady();
+            }
+
+            @Override
+            public void setWriteListener(WriteListener writeListener) {
+                delegate.setWriteListener(writeListener);
+            }
+        }
+    }
+}
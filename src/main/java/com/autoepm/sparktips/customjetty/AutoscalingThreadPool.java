@@ -0,0 +1,275 @@
+/*
+ * Copyright 2019 Giacomo Lacava
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package com.autoepm.sparktips.customjetty;
+
+import org.eclipse.jetty.util.annotation.ManagedAttribute;
+import org.eclipse.jetty.util.annotation.ManagedObject;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.eclipse.jetty.util.thread.ScheduledExecutorScheduler;
+import org.eclipse.jetty.util.thread.Scheduler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * QueuedThreadPool that moves its own maxThreads between a floor and a ceiling.
+ * Every sample it looks at how long jobs waited in the queue and how busy the CPU is:
+ * long waits with CPU to spare mean more threads would help, short waits with lots of idle
+ * threads mean we're paying for stacks we don't need. Growing and shrinking use different
+ * thresholds, and shrinking also needs a few quiet samples in a row, so the size doesn't flap.
+ * With MyCustomEmbeddedServerFactory.withRequestMetrics the resizes show up on the metrics page.
+ **/
+@ManagedObject("Autoscaling thread pool")
+public class AutoscalingThreadPool extends QueuedThreadPool implements RequestMetrics.Exporter {
+    private final static Logger logger = LoggerFactory.getLogger(AutoscalingThreadPool.class);
+
+    private final int floorMaxThreads;
+    private final int ceilingMaxThreads;
+    private final Scheduler scheduler = new ScheduledExecutorScheduler("autoscaler", true);
+    private final OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+
+    private long sampleIntervalMillis = 1000;
+    private long growWaitMillis = 50;
+    private long shrinkWaitMillis = 5;
+    private double cpuCeiling = 0.85;
+    private double shrinkIdleRatio = 0.5;
+    private int quietSamplesToShrink = 10;
+    private double stepRatio = 0.25;
+
+    // queue wait since the last sample
+    private final LongAdder waitNanos = new LongAdder();
+    private final LongAdder waitedJobs = new LongAdder();
+
+    private final AtomicLong resizeUps = new AtomicLong();
+    private final AtomicLong resizeDowns = new AtomicLong();
+    private volatile double lastAverageWaitMillis;
+    private volatile double lastCpuLoad;
+    private int quietSamples;
+
+    public AutoscalingThreadPool(int floorMaxThreads, int ceilingMaxThreads, int minThreads, int idleTimeout) {
+        this(floorMaxThreads, ceilingMaxThreads, minThreads, idleTimeout, null);
+    }
+
+    public AutoscalingThreadPool(int floorMaxThreads, int ceilingMaxThreads, int minThreads, int idleTimeout, BlockingQueue<Runnable> queue) {
+        super(floorMaxThreads, Math.min(minThreads, floorMaxThreads), idleTimeout, queue);
+        if (floorMaxThreads <= 0 || ceilingMaxThreads < floorMaxThreads) {
+            throw new IllegalArgumentException("need 0 < floor <= ceiling, got " + floorMaxThreads + " and " + ceilingMaxThreads);
+        }
+        this.floorMaxThreads = floorMaxThreads;
+        this.ceilingMaxThreads = ceilingMaxThreads;
+        addBean(scheduler);
+    }
+
+    @Override
+    protected void doStart() throws Exception {
+        super.doStart();
+        scheduleSample();
+    }
+
+    @Override
+    public void execute(Runnable job) {
+        super.execute(new TimedJob(job, System.nanoTime()));
+    }
+
+    private void scheduleSample() {
+        if (isRunning()) {
+            scheduler.schedule(this::sample, sampleIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void sample() {
+        try {
+            long jobs = waitedJobs.sumThenReset();
+            long nanos = waitNanos.sumThenReset();
+            // jobs still sitting in the queue count too, otherwise a completely stuck pool looks fine
+            double averageWaitMillis = jobs == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(nanos / jobs) / 1000.0;
+            if (getQueueSize() > 0 && getIdleThreads() == 0) {
+                averageWaitMillis = Math.max(averageWaitMillis, sampleIntervalMillis);
+            }
+            double cpuLoad = cpuLoad();
+            lastAverageWaitMillis = averageWaitMillis;
+            lastCpuLoad = cpuLoad;
+
+            int max = getMaxThreads();
+            int step = Math.max(1, (int) Math.ceil(max * stepRatio));
+            if (averageWaitMillis >= growWaitMillis && cpuLoad < cpuCeiling && max < ceilingMaxThreads) {
+                quietSamples = 0;
+                resize(max, Math.min(ceilingMaxThreads, max + step), averageWaitMillis, cpuLoad);
+            } else if (averageWaitMillis <= shrinkWaitMillis && getIdleThreads() >= max * shrinkIdleRatio) {
+                if (++quietSamples >= quietSamplesToShrink && max > floorMaxThreads) {
+                    quietSamples = 0;
+                    resize(max, Math.max(floorMaxThreads, max - step), averageWaitMillis, cpuLoad);
+                }
+            } else {
+                quietSamples = 0;
+            }
+        } catch (Throwable x) {
+            logger.warn("autoscaler sample failed", x);
+        } finally {
+            scheduleSample();
+        }
+    }
+
+    private void resize(int from, int to, double averageWaitMillis, double cpuLoad) {
+        try {
+            setMaxThreads(to);
+        } catch (IllegalStateException e) {
+            // the connectors have leased more threads than we wanted to leave
+            logger.warn("autoscaler could not resize {} -> {}: {}", from, to, e.getMessage());
+            return;
+        }
+        if (to > from) {
+            resizeUps.incrementAndGet();
+        } else {
+            resizeDowns.incrementAndGet();
+        }
+        logger.info("autoscaler resized maxThreads {} -> {} (queue wait {}ms, cpu {}%, queue size {}, idle threads {})",
+                from, to, String.format("%.2f", averageWaitMillis), Math.round(cpuLoad * 100), getQueueSize(), getIdleThreads());
+    }
+
+    private double cpuLoad() {
+        if (os instanceof com.sun.management.OperatingSystemMXBean) {
+            double load = ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuLoad();
+            if (load >= 0) {
+                return load;
+            }
+        }
+        // best effort where the JDK doesn't give us a process figure
+        double average = os.getSystemLoadAverage();
+        return average < 0 ? 0 : Math.min(1.0, average / os.getAvailableProcessors());
+    }
+
+    @ManagedAttribute("lowest maxThreads the autoscaler will go to")
+    public int getFloorMaxThreads() {
+        return floorMaxThreads;
+    }
+
+    @ManagedAttribute("highest maxThreads the autoscaler will go to")
+    public int getCeilingMaxThreads() {
+        return ceilingMaxThreads;
+    }
+
+    @ManagedAttribute("number of times maxThreads was raised")
+    public long getResizeUps() {
+        return resizeUps.get();
+    }
+
+    @ManagedAttribute("number of times maxThreads was lowered")
+    public long getResizeDowns() {
+        return resizeDowns.get();
+    }
+
+    @ManagedAttribute("average queue wait in the last sample, in milliseconds")
+    public double getLastAverageWaitMillis() {
+        return lastAverageWaitMillis;
+    }
+
+    @ManagedAttribute("process CPU load in the last sample, 0 to 1")
+    public double getLastCpuLoad() {
+        return lastCpuLoad;
+    }
+
+    @Override
+    public void writePrometheus(Writer out) throws IOException {
+        out.write("# HELP spark_thread_pool_max_threads Current maxThreads, as set by the autoscaler.\n");
+        out.write("# TYPE spark_thread_pool_max_threads gauge\n");
+        out.write("spark_thread_pool_max_threads " + getMaxThreads() + "\n");
+        out.write("# HELP spark_thread_pool_threads Threads in the pool, by state.\n");
+        out.write("# TYPE spark_thread_pool_threads gauge\n");
+        out.write("spark_thread_pool_threads{state=\"busy\"} " + getBusyThreads() + "\n");
+        out.write("spark_thread_pool_threads{state=\"idle\"} " + getIdleThreads() + "\n");
+        out.write("# HELP spark_thread_pool_queued_jobs Jobs waiting for a thread.\n");
+        out.write("# TYPE spark_thread_pool_queued_jobs gauge\n");
+        out.write("spark_thread_pool_queued_jobs " + getQueueSize() + "\n");
+        out.write("# HELP spark_thread_pool_resizes_total Times the autoscaler changed maxThreads, by direction.\n");
+        out.write("# TYPE spark_thread_pool_resizes_total counter\n");
+        out.write("spark_thread_pool_resizes_total{direction=\"up\"} " + getResizeUps() + "\n");
+        out.write("spark_thread_pool_resizes_total{direction=\"down\"} " + getResizeDowns() + "\n");
+        out.write("# HELP spark_thread_pool_queue_wait_seconds Average queue wait in the last autoscaler sample.\n");
+        out.write("# TYPE spark_thread_pool_queue_wait_seconds gauge\n");
+        out.write("spark_thread_pool_queue_wait_seconds " + lastAverageWaitMillis / 1000.0 + "\n");
+    }
+
+    public void setSampleIntervalMillis(long sampleIntervalMillis) {
+        this.sampleIntervalMillis = sampleIntervalMillis;
+    }
+
+    /**
+     * Grow when jobs wait at least growWaitMillis on average, shrink only when they wait at most
+     * shrinkWaitMillis; the gap between the two is what stops the pool from flapping.
+     */
+    public void setWaitThresholds(long growWaitMillis, long shrinkWaitMillis) {
+        if (shrinkWaitMillis >= growWaitMillis) {
+            throw new IllegalArgumentException("shrink threshold must be below the grow threshold");
+        }
+        this.growWaitMillis = growWaitMillis;
+        this.shrinkWaitMillis = shrinkWaitMillis;
+    }
+
+    /**
+     * Don't add threads once the process is using this much CPU (0 to 1), they'd only add contention.
+     */
+    public void setCpuCeiling(double cpuCeiling) {
+        this.cpuCeiling = cpuCeiling;
+    }
+
+    /**
+     * How many consecutive quiet samples, with at least shrinkIdleRatio of the threads idle, before shrinking.
+     */
+    public void setShrinkPolicy(int quietSamplesToShrink, double shrinkIdleRatio) {
+        this.quietSamplesToShrink = quietSamplesToShrink;
+        this.shrinkIdleRatio = shrinkIdleRatio;
+    }
+
+    /**
+     * Each resize moves maxThreads by this fraction of its current value (at least one thread).
+     */
+    public void setStepRatio(double stepRatio) {
+        this.stepRatio = stepRatio;
+    }
+
+    private class TimedJob implements Runnable {
+        private final Runnable job;
+        private final long queuedAt;
+
+        private TimedJob(Runnable job, long queuedAt) {
+            this.job = job;
+            this.queuedAt = queuedAt;
+        }
+
+        @Override
+        public void run() {
+            waitNanos.add(System.nanoTime() - queuedAt);
+            waitedJobs.increment();
+            job.run();
+        }
+
+        @Override
+        public String toString() {
+            return job.toString();
+        }
+    }
+}
@@ -0,0 +1,403 @@
+/*
+ * Copyright 2019 Giacomo Lacava
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package com.autoepm.sparktips.customjetty;
+
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.handler.HandlerWrapper;
+import org.eclipse.jetty.util.annotation.ManagedAttribute;
+import org.eclipse.jetty.util.annotation.ManagedObject;
+import org.eclipse.jetty.util.thread.ScheduledExecutorScheduler;
+import org.eclipse.jetty.util.thread.Scheduler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.DispatcherType;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs requests for some path prefixes on their own, separately sized executors.
+ * The request is suspended with servlet async and handed over, so the Jetty thread goes straight
+ * back to the pool: a slow endpoint can only ever use up its own bulkhead, never the threads
+ * that everything else needs. When a bulkhead is full, or a request waits in its queue for too long,
+ * the request gets a 503 with Retry-After.
+ * Anything that doesn't match a prefix runs on the Jetty thread as usual.
+ * Handlers further in that suspend requests themselves (async routes, the response cache) can't call
+ * startAsync() on a request that's already running here, they take the bulkhead's over with takeOver().
+ **/
+@ManagedObject("Bulkheads")
+public class BulkheadHandler extends HandlerWrapper implements RequestMetrics.Exporter {
+    private final static Logger logger = LoggerFactory.getLogger(BulkheadHandler.class);
+
+    // static, so handlers further in can find the task without a reference to this handler
+    private static final String TASK_ATTRIBUTE = BulkheadHandler.class.getName() + ".task";
+
+    private final String dispatchedAttribute = BulkheadHandler.class.getName() + "@" + Integer.toHexString(hashCode());
+    // path prefix -> bulkhead, longest prefix first
+    private final TreeMap<String, Bulkhead> bulkheads = new TreeMap<>((a, b) -> a.length() != b.length() ? b.length() - a.length() : a.compareTo(b));
+    private final Scheduler scheduler = new ScheduledExecutorScheduler("bulkhead-timeouts", true);
+    private long timeoutMillis = 30000;
+    private int retryAfterSeconds = 1;
+
+    public BulkheadHandler() {
+        addBean(scheduler);
+    }
+
+    /**
+     * Requests starting with pathPrefix run on a pool of the given size, with at most maxQueued waiting.
+     */
+    public BulkheadHandler withBulkhead(String pathPrefix, int threads, int maxQueued) {
+        if (isStarted()) {
+            throw new IllegalStateException("bulkheads can't be added once the server is started");
+        }
+        bulkheads.put(pathPrefix, new Bulkhead(pathPrefix, threads, maxQueued));
+        return this;
+    }
+
+    /**
+     * How long a request may wait in a bulkhead's queue before the client gets a 503.
+     * Once a request is running it's left to finish, however long it takes. 0 means no limit.
+     */
+    public BulkheadHandler withTimeoutMillis(long timeoutMillis) {
+        this.timeoutMillis = timeoutMillis;
+        return this;
+    }
+
+    public BulkheadHandler withRetryAfterSeconds(int retryAfterSeconds) {
+        this.retryAfterSeconds = retryAfterSeconds;
+        return this;
+    }
+
+    public Collection<Bulkhead> getBulkheads() {
+        return Collections.unmodifiableCollection(bulkheads.values());
+    }
+
+    @Override
+    public void writePrometheus(Writer out) throws IOException {
+        out.write("# HELP spark_bulkhead_requests Requests in a bulkhead now, by state.\n");
+        out.write("# TYPE spark_bulkhead_requests gauge\n");
+        for (Bulkhead bulkhead : bulkheads.values()) {
+            String label = "bulkhead=\"" + RequestMetrics.escape(bulkhead.getPathPrefix()) + "\"";
+            out.write("spark_bulkhead_requests{" + label + ",state=\"active\"} " + bulkhead.getActive() + "\n");
+            out.write("spark_bulkhead_requests{" + label + ",state=\"queued\"} " + bulkhead.getQueueDepth() + "\n");
+        }
+        out.write("# HELP spark_bulkhead_requests_total Requests that reached a bulkhead, by outcome.\n");
+        out.write("# TYPE spark_bulkhead_requests_total counter\n");
+        for (Bulkhead bulkhead : bulkheads.values()) {
+            String label = "bulkhead=\"" + RequestMetrics.escape(bulkhead.getPathPrefix()) + "\"";
+            out.write("spark_bulkhead_requests_total{" + label + ",outcome=\"completed\"} " + bulkhead.getCompleted() + "\n");
+            out.write("spark_bulkhead_requests_total{" + label + ",outcome=\"rejected\"} " + bulkhead.getRejected() + "\n");
+            out.write("spark_bulkhead_requests_total{" + label + ",outcome=\"timed_out\"} " + bulkhead.getTimedOut() + "\n");
+        }
+    }
+
+    @Override
+    protected void doStart() throws Exception {
+        for (Bulkhead bulkhead : bulkheads.values()) {
+            bulkhead.start();
+        }
+        super.doStart();
+    }
+
+    @Override
+    protected void doStop() throws Exception {
+        int rejected = 0;
+        for (Bulkhead bulkhead : bulkheads.values()) {
+            for (Runnable queued : bulkhead.stop()) {
+                if (queued instanceof Task && ((Task) queued).reject()) {
+                    rejected++;
+                }
+            }
+        }
+        if (rejected > 0) {
+            logger.warn("{} queued requests rejected on stop", rejected);
+        }
+        super.doStop();
+    }
+
+    @Override
+    public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response) throws IOException, ServletException {
+        // async re-dispatches of a request we already moved stay wherever they were dispatched to
+        Bulkhead bulkhead = request.getAttribute(dispatchedAttribute) == null ? find(target) : null;
+        if (bulkhead == null) {
+            super.handle(target, baseRequest, request, response);
+            return;
+        }
+
+        request.setAttribute(dispatchedAttribute, bulkhead.getPathPrefix());
+        AsyncContext context = request.startAsync();
+        // Jetty's own async timeout would complete the request under a task that's already running it,
+        // so the queue timeout is ours, and a running task is never cut off
+        context.setTimeout(0);
+        // from here on the bulkhead thread owns the request
+        baseRequest.setHandled(true);
+        Task task = new Task(bulkhead, target, baseRequest, request, response, context);
+        try {
+            bulkhead.execute(task);
+        } catch (RejectedExecutionException e) {
+            task.reject();
+            return;
+        }
+        if (timeoutMillis > 0) {
+            task.timeout = scheduler.schedule(task::expire, timeoutMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void handleInBulkhead(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response) throws IOException, ServletException {
+        super.handle(target, baseRequest, request, response);
+    }
+
+    /**
+     * True if the request is running on a bulkhead thread and its AsyncContext can be taken over.
+     */
+    public static boolean canTakeOver(HttpServletRequest request) {
+        return request.getAttribute(TASK_ATTRIBUTE) instanceof Task;
+    }
+
+    /**
+     * For a request running on a bulkhead thread, where startAsync() would throw: hands over the
+     * AsyncContext the bulkhead suspended it with. The bulkhead won't complete the request after that,
+     * the caller has to (or dispatch it). Returns null if the request isn't running on a bulkhead thread.
+     */
+    public static AsyncContext takeOver(HttpServletRequest request) {
+        Object task = request.getAttribute(TASK_ATTRIBUTE);
+        if (!(task instanceof Task)) {
+            return null;
+        }
+        request.removeAttribute(TASK_ATTRIBUTE);
+        ((Task) task).takenOver = true;
+        return ((Task) task).context;
+    }
+
+    private Bulkhead find(String target) {
+        for (Map.Entry<String, Bulkhead> entry : bulkheads.entrySet()) {
+            if (target.startsWith(entry.getKey())) {
+                return entry.getValue();
+            }
+        }
+        return null;
+    }
+
+    private void reject(HttpServletResponse response) {
+        if (!response.isCommitted()) {
+            response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            response.setHeader("Retry-After", Integer.toString(retryAfterSeconds));
+            response.setContentLength(0);
+        }
+    }
+
+    private static void complete(AsyncContext context) {
+        try {
+            context.complete();
+        } catch (IllegalStateException e) {
+            // already completed, e.g. the connection failed
+            logger.debug("request already completed", e);
+        }
+    }
+
+    /**
+     * A suspended request waiting for, or running on, a bulkhead thread. Whoever claims it first,
+     * the bulkhead thread or a 503 (timeout, full queue, stop), is the only one that touches the response.
+     */
+    private class Task implements Runnable {
+        private final Bulkhead bulkhead;
+        private final String target;
+        private final Request baseRequest;
+        private final HttpServletRequest request;
+        private final HttpServletResponse response;
+        private final AsyncContext context;
+        private final DispatcherType dispatcherType;
+        private final AtomicBoolean claimed = new AtomicBoolean();
+        private volatile Scheduler.Task timeout;
+        // set by takeOver(), only ever from this task's own thread
+        private boolean takenOver;
+
+        private Task(Bulkhead bulkhead, String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response, AsyncContext context) {
+            this.bulkhead = bulkhead;
+            this.target = target;
+            this.baseRequest = baseRequest;
+            this.request = request;
+            this.response = response;
+            this.context = context;
+            this.dispatcherType = baseRequest.getDispatcherType();
+        }
+
+        @Override
+        public void run() {
+            if (!claimed.compareAndSet(false, true)) {
+                // timed out while queued, the client already has its 503
+                return;
+            }
+            Scheduler.Task timeout = this.timeout;
+            if (timeout != null) {
+                timeout.cancel();
+            }
+            // Jetty clears it once the original thread is done, and handlers further in (gzip, the cache) check it
+            baseRequest.setDispatcherType(dispatcherType);
+            request.setAttribute(TASK_ATTRIBUTE, this);
+            try {
+                handleInBulkhead(target, baseRequest, request, response);
+            } catch (Throwable x) {
+                logger.warn("bulkhead {} request {} failed", bulkhead.getPathPrefix(), target, x);
+                if (!takenOver && !response.isCommitted()) {
+                    response.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+                }
+            } finally {
+                request.removeAttribute(TASK_ATTRIBUTE);
+                bulkhead.completed.incrementAndGet();
+                if (!takenOver) {
+                    complete(context);
+                }
+            }
+        }
+
+        private void expire() {
+            if (reject()) {
+                bulkhead.timedOut.incrementAndGet();
+                // frees its queue slot, rather than waiting for a thread just to skip itself
+                bulkhead.remove(this);
+            }
+        }
+
+        private boolean reject() {
+            if (!claimed.compareAndSet(false, true)) {
+                return false;
+            }
+            BulkheadHandler.this.reject(response);
+            complete(context);
+            return true;
+        }
+    }
+
+    /**
+     * One bulkhead: a fixed size pool with a bounded queue, and its own counters.
+     */
+    @ManagedObject("Bulkhead")
+    public static class Bulkhead {
+        private final String pathPrefix;
+        private final int threads;
+        private final int maxQueued;
+        private final AtomicLong completed = new AtomicLong();
+        private final AtomicLong rejected = new AtomicLong();
+        private final AtomicLong timedOut = new AtomicLong();
+        private volatile ThreadPoolExecutor executor;
+
+        private Bulkhead(String pathPrefix, int threads, int maxQueued) {
+            this.pathPrefix = pathPrefix;
+            this.threads = threads;
+            this.maxQueued = maxQueued;
+        }
+
+        private void start() {
+            AtomicInteger count = new AtomicInteger();
+            String name = "bulkhead" + pathPrefix.replace('/', '-');
+            executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<>(Math.max(1, maxQueued)),
+                    runnable -> {
+                        Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+            executor.allowCoreThreadTimeOut(true);
+        }
+
+        private List<Runnable> stop() {
+            ThreadPoolExecutor current = executor;
+            return current == null ? Collections.emptyList() : current.shutdownNow();
+        }
+
+        private void execute(Runnable task) {
+            ThreadPoolExecutor current = executor;
+            if (current == null) {
+                rejected.incrementAndGet();
+                throw new RejectedExecutionException("bulkhead " + pathPrefix + " not started");
+            }
+            try {
+                current.execute(task);
+            } catch (RejectedExecutionException e) {
+                rejected.incrementAndGet();
+                throw e;
+            }
+        }
+
+        private void remove(Runnable task) {
+            ThreadPoolExecutor current = executor;
+            if (current != null) {
+                current.remove(task);
+            }
+        }
+
+        @ManagedAttribute("path prefix served by this bulkhead")
+        public String getPathPrefix() {
+            return pathPrefix;
+        }
+
+        @ManagedAttribute("maximum threads")
+        public int getThreads() {
+            return threads;
+        }
+
+        @ManagedAttribute("requests running now")
+        public int getActive() {
+            ThreadPoolExecutor current = executor;
+            return current == null ? 0 : current.getActiveCount();
+        }
+
+        @ManagedAttribute("requests waiting now")
+        public int getQueueDepth() {
+            ThreadPoolExecutor current = executor;
+            return current == null ? 0 : current.getQueue().size();
+        }
+
+        @ManagedAttribute("maximum requests waiting")
+        public int getMaxQueued() {
+            return maxQueued;
+        }
+
+        @ManagedAttribute("requests handled")
+        public long getCompleted() {
+            return completed.get();
+        }
+
+        @ManagedAttribute("requests rejected because the bulkhead was full")
+        public long getRejected() {
+            return rejected.get();
+        }
+
+        @ManagedAttribute("requests that waited in the queue for too long")
+        public long getTimedOut() {
+            return timedOut.get();
+        }
+    }
+}
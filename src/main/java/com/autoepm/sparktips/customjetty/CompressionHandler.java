@@ -0,0 +1,297 @@
+/*
+ * Copyright 2019 Giacomo Lacava
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package com.autoepm.sparktips.customjetty;
+
+import org.eclipse.jetty.http.HttpHeader;
+import org.eclipse.jetty.http.MimeTypes;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.handler.gzip.GzipHandler;
+import org.eclipse.jetty.util.annotation.ManagedAttribute;
+import org.eclipse.jetty.util.annotation.ManagedObject;
+
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Enumeration;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Response compression for the spark handler. Dynamic responses are gzipped as they're written,
+ * by Jetty's GzipHandler (which keeps a pool of Deflaters, so there's no per-request allocation there),
+ * with the withX methods below as shortcuts for its settings.
+ * On top of that, if withPrecompressedFiles() points at a static files folder, a GET for a file that has
+ * a .br or .gz sibling, from a client that accepts it, is answered with the sibling as it is:
+ * hot assets get compressed once at build time instead of on every request.
+ * There's no brotli encoder in the JDK or in Jetty 9.4, so brotli only works for precompressed files.
+ **/
+@ManagedObject("Compression")
+public class CompressionHandler extends GzipHandler {
+
+    private final MimeTypes mimeTypes = new MimeTypes();
+    private Path precompressedRoot;
+    private final AtomicLong brotliServed = new AtomicLong();
+    private final AtomicLong gzipServed = new AtomicLong();
+
+    public CompressionHandler() {
+        // tiny responses grow when compressed, and aren't worth the CPU anyway
+        setMinGzipSize(1024);
+    }
+
+    /**
+     * Responses smaller than this (when the size is known up front) go out uncompressed.
+     */
+    public CompressionHandler withMinSize(int minBytes) {
+        setMinGzipSize(minBytes);
+        return this;
+    }
+
+    /**
+     * 1 (fastest) to 9 (smallest), -1 for the JDK default (6).
+     */
+    public CompressionHandler withCompressionLevel(int level) {
+        setCompressionLevel(level);
+        return this;
+    }
+
+    /**
+     * Only compress these mime types, e.g. "application/json". Without this, anything that
+     * isn't already compressed (images, archives...) is included.
+     */
+    public CompressionHandler withIncludedMimeTypes(String... mimeTypes) {
+        setIncludedMimeTypes(mimeTypes);
+        return this;
+    }
+
+    public CompressionHandler withExcludedMimeTypes(String... mimeTypes) {
+        addExcludedMimeTypes(mimeTypes);
+        return this;
+    }
+
+    /**
+     * Path specs as in Jetty, e.g. "/api/*" or "*.json".
+     */
+    public CompressionHandler withIncludedPaths(String... pathSpecs) {
+        setIncludedPaths(pathSpecs);
+        return this;
+    }
+
+    public CompressionHandler withExcludedPaths(String... pathSpecs) {
+        addExcludedPaths(pathSpecs);
+        return this;
+    }
+
+    /**
+     * Jetty only compresses GET responses by default.
+     */
+    public CompressionHandler withIncludedMethods(String... methods) {
+        setIncludedMethods(methods);
+        return this;
+    }
+
+    /**
+     * How many Deflaters to keep around for reuse, roughly the number of responses compressed at the same time.
+     */
+    public CompressionHandler withDeflaterPoolCapacity(int capacity) {
+        setDeflaterPoolCapacity(capacity);
+        return this;
+    }
+
+    /**
+     * Serve .br / .gz siblings of files under this folder, usually the same one given to
+     * spark's staticFiles.externalLocation(). Siblings older than the original are ignored.
+     */
+    public CompressionHandler withPrecompressedFiles(String directory) {
+        this.precompressedRoot = Paths.get(directory).toAbsolutePath().normalize();
+        return this;
+    }
+
+    @Override
+    public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response) throws IOException, ServletException {
+        if (precompressedRoot != null && servePrecompressed(target, baseRequest, request, response)) {
+            return;
+        }
+        String acceptEncoding = request.getHeader(HttpHeader.ACCEPT_ENCODING.asString());
+        if (acceptEncoding != null && acceptEncoding.contains("gzip") && getMinGzipSize() > 0) {
+            response = new MinSizeResponse(response, getMinGzipSize());
+        }
+        super.handle(target, baseRequest, request, response);
+    }
+
+    private boolean servePrecompressed(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response) throws IOException {
+        String method = request.getMethod();
+        boolean head = "HEAD".equals(method);
+        if (!head && !"GET".equals(method)) {
+            return false;
+        }
+        Path file = precompressedRoot.resolve(target.startsWith("/") ? target.substring(1) : target).normalize();
+        if (!file.startsWith(precompressedRoot) || !Files.isRegularFile(file)) {
+            return false;
+        }
+
+        boolean acceptsBrotli = false;
+        boolean acceptsGzip = false;
+        Enumeration<String> headers = request.getHeaders(HttpHeader.ACCEPT_ENCODING.asString());
+        while (headers != null && headers.hasMoreElements()) {
+            for (String coding : headers.nextElement().split(",")) {
+                String name = accepted(coding);
+                acceptsBrotli |= "br".equals(name);
+                acceptsGzip |= "gzip".equals(name);
+            }
+        }
+
+        Path sibling = null;
+        String encoding = null;
+        if (acceptsBrotli && isFresh(file, file.resolveSibling(file.getFileName() + ".br"))) {
+            sibling = file.resolveSibling(file.getFileName() + ".br");
+            encoding = "br";
+        } else if (acceptsGzip && isFresh(file, file.resolveSibling(file.getFileName() + ".gz"))) {
+            sibling = file.resolveSibling(file.getFileName() + ".gz");
+            encoding = "gzip";
+        }
+        if (sibling == null) {
+            return false;
+        }
+
+        baseRequest.setHandled(true);
+        String mimeType = mimeTypes.getMimeByExtension(file.getFileName().toString());
+        if (mimeType != null) {
+            response.setContentType(mimeType);
+        }
+        response.setHeader(HttpHeader.CONTENT_ENCODING.asString(), encoding);
+        response.setHeader(HttpHeader.VARY.asString(), HttpHeader.ACCEPT_ENCODING.asString());
+        response.setDateHeader(HttpHeader.LAST_MODIFIED.asString(), Files.getLastModifiedTime(file).toMillis());
+        response.setContentLengthLong(Files.size(sibling));
+        if (!head) {
+            Files.copy(sibling, response.getOutputStream());
+        }
+        if ("br".equals(encoding)) {
+            brotliServed.incrementAndGet();
+        } else {
+            gzipServed.incrementAndGet();
+        }
+        return true;
+    }
+
+    // the coding name if the client accepts it, i.e. anything but q=0
+    private static String accepted(String coding) {
+        String[] parts = coding.trim().split(";");
+        for (int i = 1; i < parts.length; i++) {
+            String param = parts[i].trim();
+            if (param.startsWith("q=")) {
+                try {
+                    if (Double.parseDouble(param.substring(2)) <= 0) {
+                        return null;
+                    }
+                } catch (NumberFormatException e) {
+                    return null;
+                }
+            }
+        }
+        return parts[0].trim().toLowerCase(Locale.ENGLISH);
+    }
+
+    private static boolean isFresh(Path file, Path sibling) throws IOException {
+        return Files.isRegularFile(sibling)
+                && Files.getLastModifiedTime(sibling).compareTo(Files.getLastModifiedTime(file)) >= 0;
+    }
+
+    /**
+     * Spark flushes the body before closing the stream, so GzipHandler never gets to see the full
+     * length and even a 2 byte response gets compressed. Holding back flushes until the response is
+     * either committed or at least minSize long lets the size check work. The catch: a route that
+     * flushes a tiny first chunk on purpose (server-sent events) sees it held until more data comes.
+     */
+    private static class MinSizeResponse extends HttpServletResponseWrapper {
+        private final int minSize;
+        private ServletOutputStream out;
+
+        private MinSizeResponse(HttpServletResponse response, int minSize) {
+            super(response);
+            this.minSize = minSize;
+        }
+
+        @Override
+        public ServletOutputStream getOutputStream() throws IOException {
+            if (out == null) {
+                out = new DeferredFlushOutputStream(super.getOutputStream());
+            }
+            return out;
+        }
+
+        private class DeferredFlushOutputStream extends ServletOutputStream {
+            private final ServletOutputStream delegate;
+            private long written;
+
+            private DeferredFlushOutputStream(ServletOutputStream delegate) {
+                this.delegate = delegate;
+            }
+
+            @Override
+            public void write(int b) throws IOException {
+                written++;
+                delegate.write(b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                written += len;
+                delegate.write(b, off, len);
+            }
+
+            @Override
+            public void flush() throws IOException {
+                if (written >= minSize || isCommitted()) {
+                    delegate.flush();
+                }
+            }
+
+            @Override
+            public void close() throws IOException {
+                delegate.close();
+            }
+
+            @Override
+            public boolean isReady() {
+                return delegate.isReady();
+            }
+
+            @Override
+            public void setWriteListener(WriteListener writeListener) {
+                delegate.setWriteListener(writeListener);
+            }
+        }
+    }
+
+    @ManagedAttribute("precompressed .br files served")
+    public long getBrotliServed() {
+        return brotliServed.get();
+    }
+
+    @ManagedAttribute("precompressed .gz files served")
+    public long getGzipServed() {
+        return gzipServed.get();
+    }
+}
@@ -0,0 +1,367 @@
+/*
+ * Copyright 2019 Giacomo Lacava
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package com.autoepm.sparktips.customjetty;
+
+import org.eclipse.jetty.server.AcceptRateLimit;
+import org.eclipse.jetty.server.Connector;
+import org.eclipse.jetty.server.ConnectionLimit;
+import org.eclipse.jetty.server.LowResourceMonitor;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.util.annotation.ManagedAttribute;
+import org.eclipse.jetty.util.annotation.ManagedObject;
+import org.eclipse.jetty.util.component.ContainerLifeCycle;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the number of open connections, and how fast new ones come in, under control.
+ * Three independent mechanisms, all built on what Jetty already has:
+ * - connection limits (global and/or per connector): over the limit, connectors stop accepting
+ * and existing connections get a short idle timeout, so idle keep-alives go away first;
+ * - an accept rate limit: too many new connections per second and accepting pauses for a bit;
+ * - low resources: when threads, heap or connections run short, idle timeouts are cut down
+ * and (unless you say otherwise) accepting stops until things recover.
+ * Every time one of these kicks in or clears it's counted, see the attributes and writePrometheus().
+ * Register it with MyCustomEmbeddedServerFactory.withConnectionGovernor().
+ **/
+@ManagedObject("Connection governor")
+public class ConnectionGovernor extends ContainerLifeCycle implements RequestMetrics.Exporter {
+
+    private int maxConnections = -1;
+    private int maxConnectionsPerConnector = -1;
+    private long limitIdleTimeoutMillis = 5000;
+    private int acceptRateLimit = -1;
+    private boolean lowResources = false;
+    private boolean lowResourcesThreads = true;
+    private long lowResourcesMaxMemory = -1;
+    private int lowResourcesMaxConnections = -1;
+    private int lowResourcesIdleTimeoutMillis = 1000;
+    private int lowResourcesPeriodMillis = 1000;
+    private boolean acceptingInLowResources = false;
+
+    private final List<Limit> limits = new ArrayList<>();
+    private RateLimit rateLimit;
+    private Monitor monitor;
+
+    /**
+     * At most this many connections across all connectors. -1 means no limit.
+     */
+    public ConnectionGovernor withMaxConnections(int maxConnections) {
+        this.maxConnections = maxConnections;
+        return this;
+    }
+
+    /**
+     * At most this many connections on each connector (each shard, if you use them). -1 means no limit.
+     */
+    public ConnectionGovernor withMaxConnectionsPerConnector(int maxConnectionsPerConnector) {
+        this.maxConnectionsPerConnector = maxConnectionsPerConnector;
+        return this;
+    }
+
+    /**
+     * Idle timeout applied to open connections while a connection limit is reached.
+     */
+    public ConnectionGovernor withLimitIdleTimeoutMillis(long limitIdleTimeoutMillis) {
+        this.limitIdleTimeoutMillis = limitIdleTimeoutMillis;
+        return this;
+    }
+
+    /**
+     * At most this many new connections per second, across all connectors. -1 means no limit.
+     * Past the limit, connectors stop accepting until the rate over the last second is back under it;
+     * the extra connections wait in the accept queue (see ConnectorOptions.withAcceptQueueSize).
+     */
+    public ConnectionGovernor withAcceptRateLimit(int connectionsPerSecond) {
+        this.acceptRateLimit = connectionsPerSecond;
+        return this;
+    }
+
+    /**
+     * Turns on the low resources monitor. Any of the thresholds can be left out with -1:
+     * threads means the server thread pool says it's low on threads, maxMemory is used heap in bytes,
+     * maxConnections is the total across connectors.
+     */
+    public ConnectionGovernor withLowResources(boolean threads, long maxMemoryBytes, int maxConnections) {
+        this.lowResources = true;
+        this.lowResourcesThreads = threads;
+        this.lowResourcesMaxMemory = maxMemoryBytes;
+        this.lowResourcesMaxConnections = maxConnections;
+        return this;
+    }
+
+    /**
+     * Idle timeout for every open connection while low on resources, and how often resources are checked.
+     */
+    public ConnectionGovernor withLowResourcesTimings(int idleTimeoutMillis, int periodMillis) {
+        this.lowResourcesIdleTimeoutMillis = idleTimeoutMillis;
+        this.lowResourcesPeriodMillis = periodMillis;
+        return this;
+    }
+
+    /**
+     * By default connectors stop accepting while low on resources, set this to keep accepting
+     * and only shorten idle timeouts.
+     */
+    public ConnectionGovernor withAcceptingInLowResources(boolean acceptingInLowResources) {
+        this.acceptingInLowResources = acceptingInLowResources;
+        return this;
+    }
+
+    /**
+     * Called by MyCustomEmbeddedServer once the connectors are in place.
+     */
+    void install(Server server) {
+        if (isStarted()) {
+            throw new IllegalStateException("connection governor already installed");
+        }
+        if (maxConnections > 0) {
+            addLimit(new Limit("all", maxConnections, server.getConnectors()));
+        }
+        if (maxConnectionsPerConnector > 0) {
+            Connector[] connectors = server.getConnectors();
+            for (int i = 0; i < connectors.length; i++) {
+                String name = connectors[i].getName() != null ? connectors[i].getName() : "connector-" + i;
+                addLimit(new Limit(name, maxConnectionsPerConnector, connectors[i]));
+            }
+        }
+        if (acceptRateLimit > 0) {
+            rateLimit = new RateLimit(acceptRateLimit, server.getConnectors());
+            addBean(rateLimit);
+        }
+        if (lowResources) {
+            monitor = new Monitor(server);
+            // the connections check only counts explicitly monitored connectors, it won't default to the server's
+            monitor.setMonitoredConnectors(Arrays.asList(server.getConnectors()));
+            monitor.setMonitorThreads(lowResourcesThreads);
+            monitor.setMaxMemory(lowResourcesMaxMemory);
+            if (lowResourcesMaxConnections > 0) {
+                monitor.addLowResourceCheck(monitor.new MaxConnectionsLowResourceCheck(lowResourcesMaxConnections));
+            }
+            monitor.setLowResourcesIdleTimeout(lowResourcesIdleTimeoutMillis);
+            monitor.setPeriod(lowResourcesPeriodMillis);
+            monitor.setAcceptingInLowResources(acceptingInLowResources);
+            addBean(monitor);
+        }
+        server.addBean(this);
+    }
+
+    private void addLimit(Limit limit) {
+        limit.setIdleTimeout(limitIdleTimeoutMillis);
+        limits.add(limit);
+        addBean(limit);
+    }
+
+    public List<Limit> getLimits() {
+        return Collections.unmodifiableList(limits);
+    }
+
+    @ManagedAttribute("true while any connection limit is reached")
+    public boolean isConnectionLimited() {
+        for (Limit limit : limits) {
+            if (limit.isLimiting()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @ManagedAttribute("true while accepting is paused by the accept rate limit")
+    public boolean isAcceptRateLimited() {
+        return rateLimit != null && rateLimit.limiting;
+    }
+
+    @ManagedAttribute("new connections in the last second")
+    public int getAcceptRate() {
+        return rateLimit == null ? 0 : rateLimit.getRate();
+    }
+
+    @ManagedAttribute("times the accept rate limit kicked in")
+    public long getAcceptRateLimited() {
+        return rateLimit == null ? 0 : rateLimit.limited.get();
+    }
+
+    @ManagedAttribute("true while low on resources")
+    public boolean isLowOnResources() {
+        return monitor != null && monitor.isLowOnResources();
+    }
+
+    @ManagedAttribute("why we're low on resources, if we are")
+    public String getLowResourcesReasons() {
+        return monitor == null ? null : monitor.getLowResourcesReasons();
+    }
+
+    @ManagedAttribute("times the server went low on resources")
+    public long getLowResourcesEntered() {
+        return monitor == null ? 0 : monitor.entered.get();
+    }
+
+    @ManagedAttribute("times the server recovered from low resources")
+    public long getLowResourcesCleared() {
+        return monitor == null ? 0 : monitor.cleared.get();
+    }
+
+    @Override
+    public void writePrometheus(Writer out) throws IOException {
+        if (!limits.isEmpty()) {
+            out.write("# HELP spark_connections Open connections, by connection limit.\n");
+            out.write("# TYPE spark_connections gauge\n");
+            for (Limit limit : limits) {
+                out.write("spark_connections{limit=\"" + limit.getName() + "\"} " + limit.getConnections() + "\n");
+            }
+            out.write("# HELP spark_connection_limit_active 1 while the connection limit is reached.\n");
+            out.write("# TYPE spark_connection_limit_active gauge\n");
+            for (Limit limit : limits) {
+                out.write("spark_connection_limit_active{limit=\"" + limit.getName() + "\"} " + (limit.isLimiting() ? 1 : 0) + "\n");
+            }
+            out.write("# HELP spark_connection_limit_reached_total Times the connection limit was reached.\n");
+            out.write("# TYPE spark_connection_limit_reached_total counter\n");
+            for (Limit limit : limits) {
+                out.write("spark_connection_limit_reached_total{limit=\"" + limit.getName() + "\"} " + limit.getReached() + "\n");
+            }
+        }
+        if (rateLimit != null) {
+            out.write("# HELP spark_accept_rate New connections in the last second.\n");
+            out.write("# TYPE spark_accept_rate gauge\n");
+            out.write("spark_accept_rate " + getAcceptRate() + "\n");
+            out.write("# HELP spark_accept_rate_limit_active 1 while accepting is paused by the rate limit.\n");
+            out.write("# TYPE spark_accept_rate_limit_active gauge\n");
+            out.write("spark_accept_rate_limit_active " + (isAcceptRateLimited() ? 1 : 0) + "\n");
+            out.write("# HELP spark_accept_rate_limited_total Times the accept rate limit kicked in.\n");
+            out.write("# TYPE spark_accept_rate_limited_total counter\n");
+            out.write("spark_accept_rate_limited_total " + getAcceptRateLimited() + "\n");
+        }
+        if (monitor != null) {
+            out.write("# HELP spark_low_resources_active 1 while low on resources.\n");
+            out.write("# TYPE spark_low_resources_active gauge\n");
+            out.write("spark_low_resources_active " + (isLowOnResources() ? 1 : 0) + "\n");
+            out.write("# HELP spark_low_resources_entered_total Times the server went low on resources.\n");
+            out.write("# TYPE spark_low_resources_entered_total counter\n");
+            out.write("spark_low_resources_entered_total " + getLowResourcesEntered() + "\n");
+            out.write("# HELP spark_low_resources_cleared_total Times the server recovered from low resources.\n");
+            out.write("# TYPE spark_low_resources_cleared_total counter\n");
+            out.write("spark_low_resources_cleared_total " + getLowResourcesCleared() + "\n");
+        }
+    }
+
+    /**
+     * Jetty's ConnectionLimit, with a name and a count of how often it kicked in.
+     */
+    @ManagedObject("Connection limit")
+    public static class Limit extends ConnectionLimit {
+        private final String name;
+        private final AtomicLong reached = new AtomicLong();
+        private final AtomicLong cleared = new AtomicLong();
+        private volatile boolean limiting;
+
+        private Limit(String name, int maxConnections, Connector... connectors) {
+            super(maxConnections, connectors);
+            this.name = name;
+        }
+
+        @ManagedAttribute("connector name, or \"all\" for the global limit")
+        public String getName() {
+            return name;
+        }
+
+        @ManagedAttribute("true while the limit is reached")
+        public boolean isLimiting() {
+            return limiting;
+        }
+
+        @ManagedAttribute("times the limit was reached")
+        public long getReached() {
+            return reached.get();
+        }
+
+        @ManagedAttribute("times the limit cleared")
+        public long getCleared() {
+            return cleared.get();
+        }
+
+        @Override
+        protected void limit() {
+            limiting = true;
+            reached.incrementAndGet();
+            super.limit();
+        }
+
+        @Override
+        protected void unlimit() {
+            limiting = false;
+            cleared.incrementAndGet();
+            super.unlimit();
+        }
+    }
+
+    private static class RateLimit extends AcceptRateLimit {
+        private final AtomicLong limited = new AtomicLong();
+        private volatile boolean limiting;
+
+        private RateLimit(int limit, Connector... connectors) {
+            super(limit, 1, TimeUnit.SECONDS, connectors);
+        }
+
+        @Override
+        protected void limit() {
+            limiting = true;
+            limited.incrementAndGet();
+            super.limit();
+        }
+
+        @Override
+        protected void unlimit() {
+            limiting = false;
+            super.unlimit();
+        }
+    }
+
+    private static class Monitor extends LowResourceMonitor {
+        private final AtomicLong entered = new AtomicLong();
+        private final AtomicLong cleared = new AtomicLong();
+        private boolean low;
+
+        private Monitor(Server server) {
+            super(server);
+        }
+
+        // also called again (to re-apply idle timeouts) if we stay low for too long, only count the first
+        @Override
+        protected void setLowResources() {
+            if (!low) {
+                low = true;
+                entered.incrementAndGet();
+            }
+            super.setLowResources();
+        }
+
+        @Override
+        protected void clearLowResources() {
+            low = false;
+            cleared.incrementAndGet();
+            super.clearLowResources();
+        }
+    }
+}
@@ -0,0 +1,292 @@
+/*
+ * Copyright 2019 Giacomo Lacava
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package com.autoepm.sparktips.customjetty;
+
+import org.eclipse.jetty.io.ByteBufferPool;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Options used by MyCustomSocketConnectorFactory when building connectors.
+ * The defaults give you exactly what Spark would build on its own, so you only need
+ * to touch what you actually want to change.
+ **/
+public class ConnectorOptions {
+
+    // HTTP/2 cleartext (h2c), served next to HTTP/1.1 on the same port
+    private boolean http2Cleartext = false;
+    // HTTP/2 over TLS (h2), negotiated with ALPN next to http/1.1 on the secure connector
+    private boolean http2 = false;
+    // HTTP/2 flow control, concurrency and HPACK, these are the Jetty defaults
+    private int http2MaxConcurrentStreams = 128;
+    private int http2InitialSessionRecvWindow = 1024 * 1024;
+    private int http2InitialStreamRecvWindow = 512 * 1024;
+    private int http2MaxDynamicTableSize = 4096;
+    // TLS, anything negative means "leave the JDK default alone"
+    private SSLOptions.Profile tlsProfile = SSLOptions.Profile.MODERN;
+    private int tlsSessionCacheSize = -1;
+    private int tlsSessionTimeoutSeconds = -1;
+    // buffers, again anything negative (or null) means "leave the Jetty default alone"
+    private ByteBufferPool byteBufferPool = null;
+    private int outputBufferSize = -1;
+    private int outputAggregationSize = -1;
+    private int requestHeaderSize = -1;
+    private int responseHeaderSize = -1;
+    // sockets and threads, negative means Jetty's default (which scales with the number of cores)
+    private int acceptors = -1;
+    private int selectors = -1;
+    private int acceptQueueSize = -1;
+    private boolean tcpNoDelay = true;
+    private boolean reusePort = false;
+    private int shards = 1;
+    // how long a connection may sit idle (e.g. keep-alive between requests) before it's closed
+    private long idleTimeoutMillis = TimeUnit.HOURS.toMillis(1L);
+
+    public boolean isHttp2Cleartext() {
+        return http2Cleartext;
+    }
+
+    public boolean isHttp2() {
+        return http2;
+    }
+
+    public int getHttp2MaxConcurrentStreams() {
+        return http2MaxConcurrentStreams;
+    }
+
+    public int getHttp2InitialSessionRecvWindow() {
+        return http2InitialSessionRecvWindow;
+    }
+
+    public int getHttp2InitialStreamRecvWindow() {
+        return http2InitialStreamRecvWindow;
+    }
+
+    public int getHttp2MaxDynamicTableSize() {
+        return http2MaxDynamicTableSize;
+    }
+
+    public SSLOptions.Profile getTlsProfile() {
+        return tlsProfile;
+    }
+
+    public int getTlsSessionCacheSize() {
+        return tlsSessionCacheSize;
+    }
+
+    public int getTlsSessionTimeoutSeconds() {
+        return tlsSessionTimeoutSeconds;
+    }
+
+    public ByteBufferPool getByteBufferPool() {
+        return byteBufferPool;
+    }
+
+    public int getOutputBufferSize() {
+        return outputBufferSize;
+    }
+
+    public int getOutputAggregationSize() {
+        return outputAggregationSize;
+    }
+
+    public int getRequestHeaderSize() {
+        return requestHeaderSize;
+    }
+
+    public int getResponseHeaderSize() {
+        return responseHeaderSize;
+    }
+
+    public int getAcceptors() {
+        return acceptors;
+    }
+
+    public int getSelectors() {
+        return selectors;
+    }
+
+    public int getAcceptQueueSize() {
+        return acceptQueueSize;
+    }
+
+    public boolean isTcpNoDelay() {
+        return tcpNoDelay;
+    }
+
+    public boolean isReusePort() {
+        return reusePort;
+    }
+
+    public int getShards() {
+        return shards;
+    }
+
+    public long getIdleTimeoutMillis() {
+        return idleTimeoutMillis;
+    }
+
+    /**
+     * Adds an h2c connection factory next to HTTP/1.1, so clients (or a proxy) can either
+     * upgrade or speak HTTP/2 with prior knowledge on the plain connector.
+     */
+    public ConnectorOptions withHttp2Cleartext(boolean http2Cleartext) {
+        this.http2Cleartext = http2Cleartext;
+        return this;
+    }
+
+    /**
+     * Lets HTTPS clients negotiate h2 through ALPN, falling back to http/1.1 for those that can't.
+     * This only affects the connector built when you call secure(), nothing else needs to change.
+     */
+    public ConnectorOptions withHttp2(boolean http2) {
+        this.http2 = http2;
+        return this;
+    }
+
+    public ConnectorOptions withHttp2MaxConcurrentStreams(int http2MaxConcurrentStreams) {
+        this.http2MaxConcurrentStreams = http2MaxConcurrentStreams;
+        return this;
+    }
+
+    /**
+     * Initial flow-control windows, in bytes. Bigger windows mean fewer WINDOW_UPDATE frames
+     * on large uploads, at the cost of more memory buffered per connection.
+     */
+    public ConnectorOptions withHttp2FlowControlWindows(int sessionRecvWindow, int streamRecvWindow) {
+        this.http2InitialSessionRecvWindow = sessionRecvWindow;
+        this.http2InitialStreamRecvWindow = streamRecvWindow;
+        return this;
+    }
+
+    /**
+     * Size of the HPACK dynamic table, in bytes. Clients sending lots of repeated headers
+     * (cookies, auth tokens) compress better with a bigger table.
+     */
+    public ConnectorOptions withHttp2MaxDynamicTableSize(int http2MaxDynamicTableSize) {
+        this.http2MaxDynamicTableSize = http2MaxDynamicTableSize;
+        return this;
+    }
+
+    /**
+     * Which protocols and cipher suites the secure connector accepts, see SSLOptions.
+     */
+    public ConnectorOptions withTlsProfile(SSLOptions.Profile tlsProfile) {
+        this.tlsProfile = tlsProfile;
+        return this;
+    }
+
+    /**
+     * Server-side session cache, so returning clients can resume instead of doing a full handshake.
+     * Stateless resumption through session tickets (java 13+) is a JVM-wide setting the JDK reads once,
+     * so it's not a connector option: start the JVM with -Djdk.tls.server.enableSessionTicketExtension=true.
+     */
+    public ConnectorOptions withTlsSessionCache(int size, int timeoutSeconds) {
+        this.tlsSessionCacheSize = size;
+        this.tlsSessionTimeoutSeconds = timeoutSeconds;
+        return this;
+    }
+
+    /**
+     * Pool the connectors take their buffers from, e.g. an InstrumentedByteBufferPool to cap retained
+     * memory and see hit/miss counts. Share one instance between the plain and secure connector.
+     */
+    public ConnectorOptions withByteBufferPool(ByteBufferPool byteBufferPool) {
+        this.byteBufferPool = byteBufferPool;
+        return this;
+    }
+
+    /**
+     * Response buffer size (Jetty default 32KB): a response that fits is sent in one go with a
+     * Content-Length, bigger ones are flushed in chunks of this size.
+     * Writes smaller than the aggregation size (default a quarter of it) are copied into the buffer
+     * rather than written straight to the socket.
+     */
+    public ConnectorOptions withOutputBuffers(int outputBufferSize, int outputAggregationSize) {
+        this.outputBufferSize = outputBufferSize;
+        this.outputAggregationSize = outputAggregationSize;
+        return this;
+    }
+
+    /**
+     * Largest request and response headers accepted (Jetty defaults 8KB each).
+     * Raise the request side if clients send big cookies or tokens and get 431s.
+     */
+    public ConnectorOptions withHeaderSizes(int requestHeaderSize, int responseHeaderSize) {
+        this.requestHeaderSize = requestHeaderSize;
+        this.responseHeaderSize = responseHeaderSize;
+        return this;
+    }
+
+    /**
+     * Threads accepting connections and threads running the selectors, per connector.
+     * 0 acceptors is allowed: the selectors accept as well.
+     */
+    public ConnectorOptions withAcceptorsAndSelectors(int acceptors, int selectors) {
+        this.acceptors = acceptors;
+        this.selectors = selectors;
+        return this;
+    }
+
+    /**
+     * Backlog of connections the kernel queues up before they're accepted (the OS caps it, see somaxconn).
+     */
+    public ConnectorOptions withAcceptQueueSize(int acceptQueueSize) {
+        this.acceptQueueSize = acceptQueueSize;
+        return this;
+    }
+
+    /**
+     * On by default, as in Jetty. Turning it off lets the kernel coalesce small writes (Nagle),
+     * which only makes sense for very chatty streaming responses.
+     */
+    public ConnectorOptions withTcpNoDelay(boolean tcpNoDelay) {
+        this.tcpNoDelay = tcpNoDelay;
+        return this;
+    }
+
+    /**
+     * SO_REUSEPORT on the listening socket, so another process (or connector) can bind the same port,
+     * e.g. to hand over during a restart.
+     */
+    public ConnectorOptions withReusePort(boolean reusePort) {
+        this.reusePort = reusePort;
+        return this;
+    }
+
+    /**
+     * Open this many connectors on the same port (with SO_REUSEPORT, Linux or BSD, java 9+), each with its
+     * own listening socket, acceptor and selectors; the kernel spreads new connections between them.
+     * Helps when a single accept queue can't keep up with connection storms on big hosts.
+     * Unless set explicitly, each shard gets 1 acceptor and its share of the selectors.
+     */
+    public ConnectorOptions withShards(int shards) {
+        this.shards = Math.max(1, shards);
+        return this;
+    }
+
+    /**
+     * The default (one hour, as Spark has always used) keeps idle keep-alive connections around
+     * for a very long time. Something closer to your clients' own keep-alive, like 30 seconds,
+     * stops them piling up. See also ConnectionGovernor, which shortens it further under pressure.
+     */
+    public ConnectorOptions withIdleTimeoutMillis(long idleTimeoutMillis) {
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        return this;
+    }
+}
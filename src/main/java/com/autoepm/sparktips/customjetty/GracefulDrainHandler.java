@@ -0,0 +1,279 @@
+/*
+ * Copyright 2019 Giacomo Lacava
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package com.autoepm.sparktips.customjetty;
+
+import org.eclipse.jetty.http.HttpHeader;
+import org.eclipse.jetty.http.HttpHeaderValue;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.handler.HandlerWrapper;
+import org.eclipse.jetty.util.FutureCallback;
+import org.eclipse.jetty.util.annotation.ManagedAttribute;
+import org.eclipse.jetty.util.annotation.ManagedObject;
+import org.eclipse.jetty.util.component.Graceful;
+import org.eclipse.jetty.util.thread.ScheduledExecutorScheduler;
+import org.eclipse.jetty.websocket.api.StatusCode;
+import org.eclipse.jetty.websocket.common.WebSocketSession;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.DispatcherType;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lets the server stop without cutting requests off. When Spark is stopped, Jetty first shuts the connectors
+ * down (TunedServerConnector closes its listening socket, so new connections are refused) and then waits for
+ * this handler, which:
+ * - keeps serving requests that arrive on connections already open, but with Connection: close,
+ * so keep-alive clients go elsewhere after their next response;
+ * - asks websocket sessions to go away (1001), unless withCloseWebSockets(false) says to wait for the clients;
+ * - waits until nothing is in flight and every websocket session is closed, or the deadline passes,
+ * and then logs how many requests were drained and how many were still running (and get aborted).
+ * Register it with MyCustomEmbeddedServerFactory.withGracefulDrain(), which puts it on top of the handler chain
+ * and sets the server's stop timeout to match.
+ **/
+@ManagedObject("Graceful drain")
+public class GracefulDrainHandler extends HandlerWrapper implements Graceful, WebSocketSession.Listener {
+    private final static Logger logger = LoggerFactory.getLogger(GracefulDrainHandler.class);
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final Set<WebSocketSession> webSockets = ConcurrentHashMap.newKeySet();
+    private final ScheduledExecutorScheduler scheduler = new ScheduledExecutorScheduler("graceful-drain", true);
+    private long deadlineMillis = 30000;
+    private boolean closeWebSockets = true;
+    private volatile Drain drain;
+
+    public GracefulDrainHandler() {
+        addBean(scheduler);
+    }
+
+    /**
+     * How long to wait for requests and websocket sessions before giving up on them.
+     */
+    public GracefulDrainHandler withDeadlineMillis(long deadlineMillis) {
+        this.deadlineMillis = deadlineMillis;
+        return this;
+    }
+
+    /**
+     * If true (the default) websocket sessions are closed with 1001 (going away) as soon as the drain starts,
+     * so clients can reconnect to another instance. If false they're left alone until the deadline.
+     */
+    public GracefulDrainHandler withCloseWebSockets(boolean closeWebSockets) {
+        this.closeWebSockets = closeWebSockets;
+        return this;
+    }
+
+    public long getDeadlineMillis() {
+        return deadlineMillis;
+    }
+
+    @Override
+    protected void doStart() throws Exception {
+        drain = null;
+        super.doStart();
+    }
+
+    @Override
+    public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response) throws IOException, ServletException {
+        if (request.getDispatcherType() != DispatcherType.REQUEST) {
+            // async re-dispatch, already counted
+            super.handle(target, baseRequest, request, response);
+            return;
+        }
+        if (drain != null && request.getProtocol().startsWith("HTTP/1")) {
+            // h2 has no Connection header, its connections are closed (with a GOAWAY) when the connector stops
+            response.setHeader(HttpHeader.CONNECTION.asString(), HttpHeaderValue.CLOSE.asString());
+        }
+        inFlight.incrementAndGet();
+        try {
+            super.handle(target, baseRequest, request, response);
+        } finally {
+            if (request.isAsyncStarted()) {
+                request.getAsyncContext().addListener(new CompletionListener());
+            } else {
+                finished();
+            }
+        }
+    }
+
+    private void finished() {
+        inFlight.decrementAndGet();
+        Drain drain = this.drain;
+        if (drain != null) {
+            drain.drained.incrementAndGet();
+            drain.check();
+        }
+    }
+
+    @Override
+    public void onOpened(WebSocketSession session) {
+        webSockets.add(session);
+    }
+
+    @Override
+    public void onClosed(WebSocketSession session) {
+        webSockets.remove(session);
+        Drain drain = this.drain;
+        if (drain != null) {
+            drain.check();
+        }
+    }
+
+    @Override
+    public Future<Void> shutdown() {
+        Drain drain;
+        synchronized (this) {
+            if (this.drain != null) {
+                return this.drain;
+            }
+            drain = new Drain();
+            this.drain = drain;
+        }
+        logger.info("draining {} requests and {} websocket sessions, for up to {}ms", drain.requestsAtStart, drain.webSocketsAtStart, deadlineMillis);
+        if (closeWebSockets) {
+            for (WebSocketSession session : webSockets) {
+                session.close(StatusCode.SHUTDOWN, "server shutting down");
+            }
+        }
+        if (scheduler.isRunning()) {
+            scheduler.schedule(drain::expire, deadlineMillis, TimeUnit.MILLISECONDS);
+        }
+        drain.check();
+        return drain;
+    }
+
+    @Override
+    public boolean isShutdown() {
+        return drain != null;
+    }
+
+    /**
+     * The outcome of a drain, finished when the last request and websocket session are done,
+     * or when the deadline expires. Succeeds either way, so Jetty doesn't report the leftovers as a stop failure.
+     */
+    private class Drain extends FutureCallback {
+        private final long started = System.nanoTime();
+        private final int requestsAtStart = inFlight.get();
+        private final int webSocketsAtStart = webSockets.size();
+        private final AtomicLong drained = new AtomicLong();
+        private final AtomicBoolean reported = new AtomicBoolean();
+        private volatile int abortedRequests = 0;
+        private volatile int abortedWebSockets = 0;
+
+        private void check() {
+            if (inFlight.get() == 0 && webSockets.isEmpty() && report(false)) {
+                succeeded();
+            }
+        }
+
+        private void expire() {
+            if (report(true)) {
+                succeeded();
+            }
+        }
+
+        @Override
+        public void failed(Throwable cause) {
+            // Jetty's own stop timeout ran out before ours did
+            report(true);
+            super.failed(cause);
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            report(true);
+            return super.cancel(mayInterruptIfRunning);
+        }
+
+        private boolean report(boolean expired) {
+            if (!reported.compareAndSet(false, true)) {
+                return false;
+            }
+            long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+            if (expired) {
+                abortedRequests = inFlight.get();
+                abortedWebSockets = webSockets.size();
+                logger.warn("drain deadline passed after {}ms: {} requests drained, {} requests and {} websocket sessions aborted",
+                        millis, drained.get(), abortedRequests, abortedWebSockets);
+            } else {
+                logger.info("drained {} requests and {} websocket sessions in {}ms", drained.get(), webSocketsAtStart, millis);
+            }
+            return true;
+        }
+    }
+
+    private class CompletionListener implements AsyncListener {
+        @Override
+        public void onComplete(AsyncEvent event) {
+            finished();
+        }
+
+        @Override
+        public void onTimeout(AsyncEvent event) {
+        }
+
+        @Override
+        public void onError(AsyncEvent event) {
+        }
+
+        @Override
+        public void onStartAsync(AsyncEvent event) {
+            event.getAsyncContext().addListener(this);
+        }
+    }
+
+    @ManagedAttribute("requests running now")
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    @ManagedAttribute("websocket sessions open now")
+    public int getOpenWebSockets() {
+        return webSockets.size();
+    }
+
+    @ManagedAttribute("requests completed since the drain started")
+    public long getDrainedRequests() {
+        Drain drain = this.drain;
+        return drain == null ? 0 : drain.drained.get();
+    }
+
+    @ManagedAttribute("requests still running when the drain deadline passed")
+    public int getAbortedRequests() {
+        Drain drain = this.drain;
+        return drain == null ? 0 : drain.abortedRequests;
+    }
+
+    @ManagedAttribute("websocket sessions still open when the drain deadline passed")
+    public int getAbortedWebSockets() {
+        Drain drain = this.drain;
+        return drain == null ? 0 : drain.abortedWebSockets;
+    }
+}
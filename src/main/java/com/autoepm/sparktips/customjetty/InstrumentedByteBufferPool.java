@@ -0,0 +1,227 @@
+/*
+ * Copyright 2019 Giacomo Lacava
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package com.autoepm.sparktips.customjetty;
+
+import org.eclipse.jetty.io.ByteBufferPool;
+import org.eclipse.jetty.util.BufferUtil;
+import org.eclipse.jetty.util.annotation.ManagedAttribute;
+import org.eclipse.jetty.util.annotation.ManagedObject;
+import org.eclipse.jetty.util.annotation.ManagedOperation;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.util.Deque;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bucketed ByteBufferPool like Jetty's ArrayByteBufferPool, plus the two things that one lacks:
+ * a cap on how much memory it keeps hold of, and counters to tell whether it's actually working.
+ * Buckets go from increment up to maxSize in steps of increment; bigger buffers are never pooled.
+ * Pass the same instance to ConnectorOptions.withByteBufferPool() and every connector shares it.
+ **/
+@ManagedObject("Instrumented ByteBufferPool")
+public class InstrumentedByteBufferPool implements ByteBufferPool, RequestMetrics.Exporter {
+
+    private final int minSize;
+    private final int increment;
+    private final int maxSize;
+    private final long maxRetainedBytes;
+    private final Deque<ByteBuffer>[] directBuckets;
+    private final Deque<ByteBuffer>[] heapBuckets;
+    private volatile boolean heapOnly;
+
+    private final AtomicLong retainedDirectBytes = new AtomicLong();
+    private final AtomicLong retainedHeapBytes = new AtomicLong();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder unpooled = new LongAdder();
+    private final LongAdder discarded = new LongAdder();
+
+    /**
+     * Jetty's bucket sizes (1KB steps up to 64KB), keeping at most 64MB.
+     */
+    public InstrumentedByteBufferPool() {
+        this(0, 1024, 64 * 1024, 64L * 1024 * 1024);
+    }
+
+    /**
+     * Buffers up to minSize aren't worth pooling. maxRetainedBytes caps direct and heap buffers together.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public InstrumentedByteBufferPool(int minSize, int increment, int maxSize, long maxRetainedBytes) {
+        if (increment <= 0 || maxSize % increment != 0 || increment >= maxSize) {
+            throw new IllegalArgumentException("increment must be a divisor of maxSize");
+        }
+        if (minSize >= increment) {
+            throw new IllegalArgumentException("minSize >= increment");
+        }
+        this.minSize = Math.max(0, minSize);
+        this.increment = increment;
+        this.maxSize = maxSize;
+        this.maxRetainedBytes = maxRetainedBytes;
+        int buckets = maxSize / increment;
+        directBuckets = new Deque[buckets];
+        heapBuckets = new Deque[buckets];
+        for (int i = 0; i < buckets; i++) {
+            directBuckets[i] = new ConcurrentLinkedDeque<>();
+            heapBuckets[i] = new ConcurrentLinkedDeque<>();
+        }
+    }
+
+    /**
+     * Hand out heap buffers even when Jetty asks for direct ones. Direct buffers save a copy on every
+     * socket read and write; heap buffers are cheaper to allocate and don't count against
+     * -XX:MaxDirectMemorySize. It only goes that way: callers asking for heap buffers use their array().
+     */
+    public InstrumentedByteBufferPool withHeapBuffersOnly(boolean heapOnly) {
+        this.heapOnly = heapOnly;
+        return this;
+    }
+
+    @Override
+    public ByteBuffer acquire(int size, boolean direct) {
+        boolean useDirect = direct && !heapOnly;
+        int bucket = bucketFor(size);
+        if (bucket < 0) {
+            unpooled.increment();
+            return newByteBuffer(size, useDirect);
+        }
+        ByteBuffer buffer = (useDirect ? directBuckets : heapBuckets)[bucket].poll();
+        if (buffer == null) {
+            misses.increment();
+            return newByteBuffer((bucket + 1) * increment, useDirect);
+        }
+        hits.increment();
+        (useDirect ? retainedDirectBytes : retainedHeapBytes).addAndGet(-buffer.capacity());
+        return buffer;
+    }
+
+    @Override
+    public void release(ByteBuffer buffer) {
+        if (buffer == null) {
+            return;
+        }
+        int bucket = bucketFor(buffer.capacity());
+        // only exact bucket sizes, so acquire() never hands out something smaller than asked for
+        if (bucket < 0 || buffer.capacity() != (bucket + 1) * increment) {
+            return;
+        }
+        AtomicLong retained = buffer.isDirect() ? retainedDirectBytes : retainedHeapBytes;
+        long total = retainedDirectBytes.get() + retainedHeapBytes.get();
+        if (total + buffer.capacity() > maxRetainedBytes) {
+            discarded.increment();
+            return;
+        }
+        retained.addAndGet(buffer.capacity());
+        BufferUtil.clear(buffer);
+        (buffer.isDirect() ? directBuckets : heapBuckets)[bucket].offerFirst(buffer);
+    }
+
+    private int bucketFor(int size) {
+        if (size <= minSize || size > maxSize) {
+            return -1;
+        }
+        return (size - 1) / increment;
+    }
+
+    @ManagedOperation("drop every pooled buffer")
+    public void clear() {
+        for (int i = 0; i < directBuckets.length; i++) {
+            drain(directBuckets[i], retainedDirectBytes);
+            drain(heapBuckets[i], retainedHeapBytes);
+        }
+    }
+
+    private static void drain(Deque<ByteBuffer> bucket, AtomicLong retained) {
+        ByteBuffer buffer;
+        while ((buffer = bucket.poll()) != null) {
+            retained.addAndGet(-buffer.capacity());
+        }
+    }
+
+    @ManagedAttribute("acquires served from the pool")
+    public long getHits() {
+        return hits.sum();
+    }
+
+    @ManagedAttribute("acquires that had to allocate a new buffer")
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    @ManagedAttribute("hits / (hits + misses), 0 to 1")
+    public double getHitRatio() {
+        long hit = hits.sum();
+        long total = hit + misses.sum();
+        return total == 0 ? 0 : (double) hit / total;
+    }
+
+    @ManagedAttribute("acquires too small or too big to pool")
+    public long getUnpooled() {
+        return unpooled.sum();
+    }
+
+    @ManagedAttribute("released buffers dropped because the pool was full")
+    public long getDiscarded() {
+        return discarded.sum();
+    }
+
+    @ManagedAttribute("bytes held in pooled direct buffers")
+    public long getRetainedDirectBytes() {
+        return retainedDirectBytes.get();
+    }
+
+    @ManagedAttribute("bytes held in pooled heap buffers")
+    public long getRetainedHeapBytes() {
+        return retainedHeapBytes.get();
+    }
+
+    @ManagedAttribute("most bytes the pool will hold on to")
+    public long getMaxRetainedBytes() {
+        return maxRetainedBytes;
+    }
+
+    @Override
+    public void writePrometheus(Writer out) throws IOException {
+        out.write("# HELP spark_buffer_pool_acquires_total Buffers handed out, by where they came from.\n");
+        out.write("# TYPE spark_buffer_pool_acquires_total counter\n");
+        out.write("spark_buffer_pool_acquires_total{result=\"hit\"} " + getHits() + "\n");
+        out.write("spark_buffer_pool_acquires_total{result=\"miss\"} " + getMisses() + "\n");
+        out.write("spark_buffer_pool_acquires_total{result=\"unpooled\"} " + getUnpooled() + "\n");
+        out.write("# HELP spark_buffer_pool_discarded_total Released buffers dropped because the pool was full.\n");
+        out.write("# TYPE spark_buffer_pool_discarded_total counter\n");
+        out.write("spark_buffer_pool_discarded_total " + getDiscarded() + "\n");
+        out.write("# HELP spark_buffer_pool_retained_bytes Bytes held in pooled buffers, by kind.\n");
+        out.write("# TYPE spark_buffer_pool_retained_bytes gauge\n");
+        out.write("spark_buffer_pool_retained_bytes{kind=\"direct\"} " + getRetainedDirectBytes() + "\n");
+        out.write("spark_buffer_pool_retained_bytes{kind=\"heap\"} " + getRetainedHeapBytes() + "\n");
+        out.write("# HELP spark_buffer_pool_max_retained_bytes Most bytes the pool will hold on to.\n");
+        out.write("# TYPE spark_buffer_pool_max_retained_bytes gauge\n");
+        out.write("spark_buffer_pool_max_retained_bytes " + getMaxRetainedBytes() + "\n");
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s@%x{hits=%d,misses=%d,unpooled=%d,discarded=%d,direct=%dB,heap=%dB/%dB}",
+                getClass().getSimpleName(), hashCode(), getHits(), getMisses(), getUnpooled(), getDiscarded(),
+                getRetainedDirectBytes(), getRetainedHeapBytes(), maxRetainedBytes);
+    }
+}
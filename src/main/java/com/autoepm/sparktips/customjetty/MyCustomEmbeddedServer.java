@@ -20,11 +20,15 @@ package com.autoepm.sparktips.customjetty;
 
 import org.eclipse.jetty.server.Connector;
 import org.eclipse.jetty.server.Handler;
+import org.eclipse.jetty.server.NetworkConnector;
 import org.eclipse.jetty.server.Server;
 import org.eclipse.jetty.server.ServerConnector;
-import org.eclipse.jetty.server.handler.HandlerList;
+import org.eclipse.jetty.server.SessionIdManager;
+import org.eclipse.jetty.server.session.DefaultSessionIdManager;
 import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.util.component.LifeCycle;
 import org.eclipse.jetty.util.thread.ThreadPool;
+import org.eclipse.jetty.websocket.server.WebSocketServerFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import spark.embeddedserver.EmbeddedServer;
@@ -34,10 +38,12 @@ import spark.ssl.SslStores;
 
 import java.io.IOException;
 import java.net.ServerSocket;
-import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 
 /**
  * your custom EmbeddedServer implementation. Most of the methods are compulsory.
@@ -53,6 +59,16 @@ public class MyCustomEmbeddedServer implements EmbeddedServer {
     private Map<String, WebSocketHandlerWrapper> webSocketHandlers;
     private Optional<Integer> webSocketIdleTimeoutMillis;
     private ThreadPool threadPool = null;
+    private ConnectorOptions connectorOptions = new ConnectorOptions();
+    private RequestMetricsHandler requestMetricsHandler = null;
+    private ConnectionGovernor connectionGovernor = null;
+    private Map<String, Handler> pathHandlers = Collections.emptyMap();
+    private AccessLog accessLog = null;
+    private WebSocketOptions webSocketOptions = new WebSocketOptions();
+    private WebSocketBroadcaster webSocketBroadcaster = null;
+    private GracefulDrainHandler gracefulDrain = null;
+    private StartupOptions startupOptions = new StartupOptions();
+    private StartupTimings startupTimings = null;
 
 
     public MyCustomEmbeddedServer(MyCustomJettyThreadPoolConfigFactory serverFactory, Handler handler) {
@@ -62,8 +78,10 @@ public class MyCustomEmbeddedServer implements EmbeddedServer {
 
     @Override
     public int ignite(String host, int port, SslStores sslStores, int maxThreads, int minThreads, int threadIdleTimeoutMillis) throws Exception {
+        StartupTimings timings = new StartupTimings();
+        boolean fastStartup = this.startupOptions.isFastStartup();
         boolean hasCustomizedConnectors = false;
-        if (port == 0) {
+        if (port == 0 && !fastStartup) {
             try (ServerSocket s = new ServerSocket(0)) {
                 port = s.getLocalPort();
             } catch (IOException e) {
@@ -78,7 +96,7 @@ public class MyCustomEmbeddedServer implements EmbeddedServer {
         } else {
             server = serverFactory.create(threadPool);
         }
-
+        timings.phase("server");
 
         /* ********* CUSTOMIZATION POINT ***************
          * This is where we buid the necessary Jetty connector.
@@ -86,38 +104,110 @@ public class MyCustomEmbeddedServer implements EmbeddedServer {
          * Note that SSL options are tweaked further down in MyCustomSocketConnectorFactory,
          * so if that's what you're looking after, go there.
          */
-        ServerConnector connector;
+        // usually just the one, unless ConnectorOptions asked for several shards on the same port
+        List<ServerConnector> connectors;
         if (sslStores == null) {
-            connector = MyCustomSocketConnectorFactory.createSocketConnector(this.server, host, port);
+            connectors = MyCustomSocketConnectorFactory.createSocketConnectors(this.server, host, port, this.connectorOptions);
         } else {
-            connector = MyCustomSocketConnectorFactory.createSecureSocketConnector(this.server, host, port, sslStores);
+            connectors = MyCustomSocketConnectorFactory.createSecureSocketConnectors(this.server, host, port, sslStores, this.connectorOptions);
         }
 
         Connector[] previousConnectors = this.server.getConnectors();
-        this.server = connector.getServer();
+        this.server = connectors.get(0).getServer();
         if (previousConnectors.length != 0) {
             this.server.setConnectors(previousConnectors);
             hasCustomizedConnectors = true;
         } else {
-            this.server.setConnectors(new Connector[]{connector});
+            this.server.setConnectors(connectors.toArray(new Connector[0]));
+            if (port == 0) {
+                // bind now to learn the port, and so any other shards can share it
+                connectors.get(0).open();
+                port = connectors.get(0).getLocalPort();
+                for (ServerConnector shard : connectors) {
+                    shard.setPort(port);
+                }
+            }
         }
+        if (this.connectionGovernor != null) {
+            // applies to whatever connectors ended up on the server, custom ones included
+            this.connectionGovernor.install(this.server);
+        }
+        timings.phase("connectors");
+        // only the connectors we built ourselves get their buffers warmed up
+        FutureTask<Void> warmup = fastStartup ? startWarmup(hasCustomizedConnectors ? Collections.<ServerConnector>emptyList() : connectors) : null;
 
         /* ********* CUSTOMIZATION POINT ***************
         If you need stuff specific to WebSockets, have a look here.
          */
         ServletContextHandler webSocketServletContextHandler = WebSocketServletContextHandlerFactory.create(this.webSocketHandlers, this.webSocketIdleTimeoutMillis);
-        if (webSocketServletContextHandler == null) {
-            this.server.setHandler(this.handler);
+        if (webSocketServletContextHandler != null) {
+            WebSocketServerFactory webSocketFactory = WebSocketOptions.factoryOf(webSocketServletContextHandler);
+            if (webSocketFactory != null) {
+                this.webSocketOptions.applyTo(webSocketFactory);
+                if (this.webSocketBroadcaster != null) {
+                    // so it can forget sessions as they close
+                    webSocketFactory.addSessionListener(this.webSocketBroadcaster);
+                }
+                if (this.gracefulDrain != null) {
+                    // so the drain knows which sessions it's waiting for
+                    webSocketFactory.addSessionListener(this.gracefulDrain);
+                }
+            } else {
+                logger.warn("unexpected websocket context, websocket options not applied");
+            }
+        }
+        Handler rootHandler;
+        if (webSocketServletContextHandler == null && this.pathHandlers.isEmpty()) {
+            rootHandler = this.handler;
         } else {
-            List<Handler> handlersInList = new ArrayList();
-            handlersInList.add(this.handler);
+            // websocket upgrades and path handlers go straight to their handler, everything else to spark
+            PathDispatchHandler dispatcher = new PathDispatchHandler(this.handler);
             if (webSocketServletContextHandler != null) {
-                handlersInList.add(webSocketServletContextHandler);
+                for (String path : this.webSocketHandlers.keySet()) {
+                    dispatcher.withWebSocketPath(path, webSocketServletContextHandler);
+                }
+            }
+            for (Map.Entry<String, Handler> pathHandler : this.pathHandlers.entrySet()) {
+                dispatcher.withPrefix(pathHandler.getKey(), pathHandler.getValue());
             }
+            rootHandler = dispatcher;
+        }
 
-            HandlerList handlers = new HandlerList();
-            handlers.setHandlers((Handler[]) handlersInList.toArray(new Handler[handlersInList.size()]));
-            this.server.setHandler(handlers);
+        /* ********* CUSTOMIZATION POINT ***************
+        Handlers that need to see every request (spark routes and websockets alike) wrap the whole lot here.
+         */
+        if (this.requestMetricsHandler != null) {
+            if (this.server.getThreadPool() instanceof RequestMetrics.Exporter) {
+                // e.g. an AutoscalingThreadPool, which only exists from here on so the factory can't register it
+                this.requestMetricsHandler.getMetrics().withExporter((RequestMetrics.Exporter) this.server.getThreadPool());
+            }
+            this.requestMetricsHandler.setHandler(rootHandler);
+            rootHandler = this.requestMetricsHandler;
+        }
+        if (this.startupOptions.getReadinessPath() != null) {
+            ReadinessHandler readiness = new ReadinessHandler(this.startupOptions.getReadinessPath());
+            readiness.setHandler(rootHandler);
+            rootHandler = readiness;
+        }
+        if (this.gracefulDrain != null) {
+            this.gracefulDrain.setHandler(rootHandler);
+            rootHandler = this.gracefulDrain;
+            // a bit more than the drain's own deadline, which goes off first and reports whatever was left
+            this.server.setStopTimeout(this.gracefulDrain.getDeadlineMillis() + 1000);
+        }
+        this.server.setHandler(rootHandler);
+        if (this.accessLog != null) {
+            // connections pick up the request log when they're created, so it has to be set before start
+            this.server.setRequestLog(this.accessLog);
+        }
+        timings.phase("handlers");
+        if (warmup != null) {
+            try {
+                warmup.get();
+            } catch (ExecutionException e) {
+                throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+            }
+            timings.phase("warmup wait");
         }
 
         this.logger.info("== {} has ignited ...", "Spark");
@@ -128,9 +218,63 @@ public class MyCustomEmbeddedServer implements EmbeddedServer {
         }
 
         this.server.start();
+        timings.phase("start");
+        if (port == 0 && this.server.getConnectors()[0] instanceof NetworkConnector) {
+            // custom connectors with fast startup, they only bind now
+            port = ((NetworkConnector) this.server.getConnectors()[0]).getLocalPort();
+        }
+        this.startupTimings = timings;
+        this.logger.info(">> Started in {}", timings);
+        if (this.startupOptions.getReadinessListener() != null) {
+            this.startupOptions.getReadinessListener().ready(port, timings);
+        }
         return port;
     }
 
+    /**
+     * Starts the thread pool and the session id manager (seeding its SecureRandom is slow) on another thread,
+     * while ignite() carries on building handlers, then fills the connectors' buffer pools.
+     * The returned task is done once the server can be started, the buffers carry on in the background.
+     */
+    private FutureTask<Void> startWarmup(List<ServerConnector> connectors) {
+        ThreadPool pool = this.server.getThreadPool();
+        if (this.server.getSessionIdManager() == null) {
+            // the one spark's session handler would create for itself on start
+            this.server.setSessionIdManager(new DefaultSessionIdManager(this.server));
+        }
+        SessionIdManager sessionIdManager = this.server.getSessionIdManager();
+        // started early or not, they're still the server's to stop
+        if (pool instanceof LifeCycle) {
+            this.server.manage(pool);
+        }
+        this.server.manage(sessionIdManager);
+        int buffers = this.startupOptions.getPrewarmBuffers();
+        FutureTask<Void> warmup = new FutureTask<>(() -> {
+            if (pool instanceof LifeCycle) {
+                ((LifeCycle) pool).start();
+            }
+            sessionIdManager.start();
+            return null;
+        });
+        Thread thread = new Thread(() -> {
+            warmup.run();
+            // buffer pools are thread safe, so the first requests can come in while this goes on
+            for (ServerConnector connector : connectors) {
+                MyCustomSocketConnectorFactory.prewarmBuffers(connector, buffers);
+            }
+        }, "startup-warmup");
+        thread.setDaemon(true);
+        thread.start();
+        return warmup;
+    }
+
+    /**
+     * How long the last ignite() took, phase by phase. null until the server has started.
+     */
+    public StartupTimings getStartupTimings() {
+        return startupTimings;
+    }
+
     @Override
     public void join() throws InterruptedException {
         this.server.join();
@@ -144,9 +288,9 @@ public class MyCustomEmbeddedServer implements EmbeddedServer {
             if (this.server != null) {
                 this.server.stop();
             }
-        } catch (Exception var2) {
-            this.logger.error("stop failed", var2);
-            System.exit(100);
+        } catch (Exception e) {
+            // whatever failed to stop is not worth taking the whole JVM down for, the application may have more to clean up
+            this.logger.error("stop failed", e);
         }
 
         this.logger.info("done");
@@ -169,4 +313,49 @@ public class MyCustomEmbeddedServer implements EmbeddedServer {
         this.threadPool = threadPool;
         return this;
     }
+
+    public MyCustomEmbeddedServer withRequestMetricsHandler(RequestMetricsHandler requestMetricsHandler) {
+        this.requestMetricsHandler = requestMetricsHandler;
+        return this;
+    }
+
+    public MyCustomEmbeddedServer withConnectionGovernor(ConnectionGovernor connectionGovernor) {
+        this.connectionGovernor = connectionGovernor;
+        return this;
+    }
+
+    public MyCustomEmbeddedServer withWebSocketOptions(WebSocketOptions webSocketOptions) {
+        this.webSocketOptions = webSocketOptions;
+        return this;
+    }
+
+    public MyCustomEmbeddedServer withWebSocketBroadcaster(WebSocketBroadcaster webSocketBroadcaster) {
+        this.webSocketBroadcaster = webSocketBroadcaster;
+        return this;
+    }
+
+    public MyCustomEmbeddedServer withStartupOptions(StartupOptions startupOptions) {
+        this.startupOptions = startupOptions;
+        return this;
+    }
+
+    public MyCustomEmbeddedServer withGracefulDrain(GracefulDrainHandler gracefulDrain) {
+        this.gracefulDrain = gracefulDrain;
+        return this;
+    }
+
+    public MyCustomEmbeddedServer withAccessLog(AccessLog accessLog) {
+        this.accessLog = accessLog;
+        return this;
+    }
+
+    public MyCustomEmbeddedServer withPathHandlers(Map<String, Handler> pathHandlers) {
+        this.pathHandlers = pathHandlers;
+        return this;
+    }
+
+    public MyCustomEmbeddedServer withConnectorOptions(ConnectorOptions connectorOptions) {
+        this.connectorOptions = connectorOptions;
+        return this;
+    }
 }
@@ -18,6 +18,7 @@
 
 package com.autoepm.sparktips.customjetty;
 
+import org.eclipse.jetty.server.Handler;
 import org.eclipse.jetty.util.thread.ThreadPool;
 import spark.ExceptionMapper;
 import spark.embeddedserver.EmbeddedServer;
@@ -28,14 +29,33 @@ import spark.route.Routes;
 import spark.staticfiles.StaticFilesConfiguration;
 
 import javax.servlet.FilterConfig;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 
 /**
  * This is the main entry point for customization operations
  **/
 public class MyCustomEmbeddedServerFactory implements EmbeddedServerFactory {
+    private final MyCustomJettyThreadPoolConfigFactory serverFactory = new MyCustomJettyThreadPoolConfigFactory();
     private ThreadPool threadPool;
     private boolean httpOnly = true;
+    private ConnectorOptions connectorOptions = new ConnectorOptions();
+    private AdmissionControlHandler admissionControl;
+    private BulkheadHandler bulkheads;
+    private CompressionHandler compression;
+    private ResponseCacheHandler responseCache;
+    private AsyncRouteHandler asyncRoutes;
+    private StaticFileHandler staticFiles;
+    private RequestMetrics requestMetrics;
+    private String metricsPath;
+    private ConnectionGovernor connectionGovernor;
+    private AccessLog accessLog;
+    private WebSocketOptions webSocketOptions = new WebSocketOptions();
+    private WebSocketBroadcaster webSocketBroadcaster;
+    private GracefulDrainHandler gracefulDrain;
+    private StartupOptions startupOptions = new StartupOptions();
+    private final Map<String, Handler> pathHandlers = new LinkedHashMap<>();
 
     public MyCustomEmbeddedServerFactory() {
     }
@@ -47,11 +67,77 @@ public class MyCustomEmbeddedServerFactory implements EmbeddedServerFactory {
         /* ********* CUSTOMIZATION POINT ***************
          * If you want to provide custom handlers, to do things like header manipulation and so on, this is the place.
          */
-        JettyHandler handler = new JettyHandler(matcherFilter);
-        handler.getSessionCookieConfig().setHttpOnly(this.httpOnly);
+        JettyHandler jettyHandler = new JettyHandler(matcherFilter);
+        jettyHandler.getSessionCookieConfig().setHttpOnly(this.httpOnly);
+
+        Handler handler = jettyHandler;
+        if (this.asyncRoutes != null) {
+            // right around spark, it's the only one that needs to see the route's result
+            this.asyncRoutes.setHandler(handler);
+            handler = this.asyncRoutes;
+        }
+        if (this.responseCache != null) {
+            // inside compression, so entries are stored uncompressed and work for any client
+            this.responseCache.setHandler(handler);
+            handler = this.responseCache;
+        }
+        if (this.staticFiles != null) {
+            // files never reach spark's StaticFilesConfiguration (or the response cache)
+            this.staticFiles.setHandler(handler);
+            handler = this.staticFiles;
+        }
+        if (this.compression != null) {
+            this.compression.setHandler(handler);
+            handler = this.compression;
+        }
+        if (this.bulkheads != null) {
+            this.bulkheads.setHandler(handler);
+            handler = this.bulkheads;
+        }
+        if (this.admissionControl != null) {
+            this.admissionControl.setHandler(handler);
+            handler = this.admissionControl;
+        }
+
+        RequestMetricsHandler requestMetricsHandler = null;
+        if (this.requestMetrics != null) {
+            if (this.connectionGovernor != null) {
+                this.requestMetrics.withExporter(this.connectionGovernor);
+            }
+            if (this.accessLog != null) {
+                this.requestMetrics.withExporter(this.accessLog);
+            }
+            if (this.webSocketBroadcaster != null) {
+                this.requestMetrics.withExporter(this.webSocketBroadcaster);
+            }
+            if (this.responseCache != null) {
+                this.requestMetrics.withExporter(this.responseCache);
+            }
+            if (this.bulkheads != null) {
+                this.requestMetrics.withExporter(this.bulkheads);
+            }
+            if (this.admissionControl != null) {
+                this.requestMetrics.withExporter(this.admissionControl);
+            }
+            if (this.connectorOptions.getByteBufferPool() instanceof RequestMetrics.Exporter) {
+                this.requestMetrics.withExporter((RequestMetrics.Exporter) this.connectorOptions.getByteBufferPool());
+            }
+            requestMetricsHandler = new RequestMetricsHandler(this.requestMetrics,
+                    new SparkRouteResolver(routeMatcher, this.requestMetrics), this.metricsPath);
+        }
 
         // return an instance of your custom EmbeddedServer implementation.
-        return (new MyCustomEmbeddedServer(new MyCustomJettyThreadPoolConfigFactory(), handler)).withThreadPool(this.threadPool);
+        return (new MyCustomEmbeddedServer(this.serverFactory, handler))
+                .withThreadPool(this.threadPool)
+                .withConnectorOptions(this.connectorOptions)
+                .withRequestMetricsHandler(requestMetricsHandler)
+                .withConnectionGovernor(this.connectionGovernor)
+                .withPathHandlers(this.pathHandlers)
+                .withAccessLog(this.accessLog)
+                .withWebSocketOptions(this.webSocketOptions)
+                .withWebSocketBroadcaster(this.webSocketBroadcaster)
+                .withGracefulDrain(this.gracefulDrain)
+                .withStartupOptions(this.startupOptions);
     }
 
     public MyCustomEmbeddedServerFactory withThreadPool(ThreadPool threadPool) {
@@ -59,10 +145,172 @@ public class MyCustomEmbeddedServerFactory implements EmbeddedServerFactory {
         return this;
     }
 
+    /**
+     * Handle requests on virtual threads (java 21+). An explicit withThreadPool() still wins.
+     */
+    public MyCustomEmbeddedServerFactory withVirtualThreads(boolean virtualThreads) {
+        this.serverFactory.withVirtualThreads(virtualThreads);
+        return this;
+    }
+
+    /**
+     * Let the default thread pool grow from spark's maxThreads up to ceilingMaxThreads, see AutoscalingThreadPool.
+     * With withRequestMetrics its size and resizes show up on the metrics page.
+     */
+    public MyCustomEmbeddedServerFactory withAutoscaling(int ceilingMaxThreads) {
+        this.serverFactory.withAutoscaling(ceilingMaxThreads);
+        return this;
+    }
+
+    /**
+     * Bound the thread pool's job queue, see MyCustomJettyThreadPoolConfigFactory.withMaxQueuedJobs.
+     */
+    public MyCustomEmbeddedServerFactory withMaxQueuedJobs(int maxQueuedJobs) {
+        this.serverFactory.withMaxQueuedJobs(maxQueuedJobs);
+        return this;
+    }
+
+    /**
+     * Put the spark handler behind a concurrency limit with fast 503s, see AdmissionControlHandler.
+     */
+    public MyCustomEmbeddedServerFactory withAdmissionControl(AdmissionControlHandler admissionControl) {
+        this.admissionControl = admissionControl;
+        return this;
+    }
+
+    /**
+     * Serve requests starting with pathPrefix from their own executor, see BulkheadHandler.
+     */
+    public MyCustomEmbeddedServerFactory withBulkhead(String pathPrefix, int threads, int maxQueued) {
+        getBulkheads().withBulkhead(pathPrefix, threads, maxQueued);
+        return this;
+    }
+
+    /**
+     * The bulkheads set up so far, to tweak timeouts or read their counters.
+     */
+    public BulkheadHandler getBulkheads() {
+        if (this.bulkheads == null) {
+            this.bulkheads = new BulkheadHandler();
+        }
+        return this.bulkheads;
+    }
+
+    /**
+     * Compress responses (and serve precompressed static files), see CompressionHandler.
+     */
+    public MyCustomEmbeddedServerFactory withCompression(CompressionHandler compression) {
+        this.compression = compression;
+        return this;
+    }
+
+    /**
+     * Routes wrapped with AsyncRouteHandler.async() are suspended while their CompletionStage runs,
+     * instead of holding a Jetty thread (or a bulkhead's, under a bulkhead prefix).
+     * Async responses are not cached by the response cache.
+     */
+    public MyCustomEmbeddedServerFactory withAsyncRoutes(AsyncRouteHandler asyncRoutes) {
+        this.asyncRoutes = asyncRoutes;
+        return this;
+    }
+
+    /**
+     * Answer repeated GETs from memory instead of running the route, see ResponseCacheHandler.
+     */
+    public MyCustomEmbeddedServerFactory withResponseCache(ResponseCacheHandler responseCache) {
+        this.responseCache = responseCache;
+        return this;
+    }
+
+    /**
+     * Serve static files from memory-mapped, cached content instead of through spark, see StaticFileHandler.
+     */
+    public MyCustomEmbeddedServerFactory withStaticFiles(StaticFileHandler staticFiles) {
+        this.staticFiles = staticFiles;
+        return this;
+    }
+
+    /**
+     * Record per-route latency and counters into requestMetrics. If metricsPath is not null,
+     * the same numbers are served there in Prometheus text format, along with those of the
+     * governor, access log, broadcaster, cache, bulkheads, admission control and buffer pool, if set.
+     */
+    public MyCustomEmbeddedServerFactory withRequestMetrics(RequestMetrics requestMetrics, String metricsPath) {
+        this.requestMetrics = requestMetrics;
+        this.metricsPath = metricsPath;
+        return this;
+    }
+
+    /**
+     * Connection limits, accept rate limiting and low resource handling, see ConnectionGovernor.
+     * With withRequestMetrics its state shows up on the metrics page too.
+     */
+    public MyCustomEmbeddedServerFactory withConnectionGovernor(ConnectionGovernor connectionGovernor) {
+        this.connectionGovernor = connectionGovernor;
+        return this;
+    }
+
+    /**
+     * Message sizes, permessage-deflate and write timeouts for Spark's websockets, see WebSocketOptions.
+     */
+    public MyCustomEmbeddedServerFactory withWebSocketOptions(WebSocketOptions webSocketOptions) {
+        this.webSocketOptions = webSocketOptions;
+        return this;
+    }
+
+    /**
+     * Topic fan-out to websocket sessions, see WebSocketBroadcaster. Registering it here lets it
+     * notice sessions closing; with withRequestMetrics its lag and queue depth show up on the metrics page.
+     */
+    public MyCustomEmbeddedServerFactory withWebSocketBroadcaster(WebSocketBroadcaster webSocketBroadcaster) {
+        this.webSocketBroadcaster = webSocketBroadcaster;
+        return this;
+    }
+
+    /**
+     * Fast startup, a readiness path and a readiness callback, see StartupOptions.
+     */
+    public MyCustomEmbeddedServerFactory withStartupOptions(StartupOptions startupOptions) {
+        this.startupOptions = startupOptions;
+        return this;
+    }
+
+    /**
+     * Stop Spark without cutting off requests and websocket sessions: stop accepting, close keep-alive
+     * connections after their next response and wait for what's in flight, up to a deadline. See GracefulDrainHandler.
+     */
+    public MyCustomEmbeddedServerFactory withGracefulDrain(GracefulDrainHandler gracefulDrain) {
+        this.gracefulDrain = gracefulDrain;
+        return this;
+    }
+
+    /**
+     * Log every request (or a sample) without blocking request threads, see AccessLog.
+     */
+    public MyCustomEmbeddedServerFactory withAccessLog(AccessLog accessLog) {
+        this.accessLog = accessLog;
+        return this;
+    }
+
+    /**
+     * Requests for pathPrefix, and anything under it, go straight to handler: no Spark route matching,
+     * filters or anything else in the handler chain (request metrics still see them).
+     * Whatever the handler leaves unhandled carries on to Spark. Handy for e.g. a StaticFileHandler on "/assets".
+     */
+    public MyCustomEmbeddedServerFactory withPathHandler(String pathPrefix, Handler handler) {
+        this.pathHandlers.put(pathPrefix, handler);
+        return this;
+    }
+
     public MyCustomEmbeddedServerFactory withHttpOnly(boolean httpOnly) {
         this.httpOnly = httpOnly;
         return this;
     }
 
+    public MyCustomEmbeddedServerFactory withConnectorOptions(ConnectorOptions connectorOptions) {
+        this.connectorOptions = connectorOptions;
+        return this;
+    }
+
 
 }
@@ -19,14 +19,24 @@
 package com.autoepm.sparktips.customjetty;
 
 import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.util.BlockingArrayQueue;
 import org.eclipse.jetty.util.thread.QueuedThreadPool;
 import org.eclipse.jetty.util.thread.ThreadPool;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import spark.embeddedserver.jetty.JettyServerFactory;
 
+import java.util.concurrent.BlockingQueue;
+
 /**
  * where the actual Server() is returned, although it's mostly used for thread pool stuff
  */
 public class MyCustomJettyThreadPoolConfigFactory implements JettyServerFactory {
+    private final static Logger logger = LoggerFactory.getLogger(MyCustomJettyThreadPoolConfigFactory.class);
+
+    private boolean virtualThreads = false;
+    private int autoscalingCeiling = 0;
+    private int maxQueuedJobs = 0;
 
     public Server create(int maxThreads, int minThreads, int threadTimeoutMillis) {
         Server server;
@@ -35,12 +45,25 @@ public class MyCustomJettyThreadPoolConfigFactory implements JettyServerFactory
         Strictly speaking, it's also where Server is created,
         so you can add any extra parameter to that too.
         */
-        if (maxThreads > 0) {
+        if (virtualThreads) {
+            // there's no ceiling to tune here, spark's threadPool() settings don't apply
+            if (maxThreads > 0) {
+                logger.info("Using virtual threads, ignoring maxThreads={}", maxThreads);
+            }
+            server = new Server(new VirtualThreadPool());
+        } else if (autoscalingCeiling > 0) {
+            // spark's maxThreads (or the usual default) is where the autoscaler starts, and never goes below
+            int floor = (maxThreads > 0) ? Math.min(maxThreads, autoscalingCeiling) : Math.min(200, autoscalingCeiling);
+            int min = (minThreads > 0) ? minThreads : 8;
+            int idleTimeout = (threadTimeoutMillis > 0) ? threadTimeoutMillis : 60000;
+
+            server = new Server(new AutoscalingThreadPool(floor, autoscalingCeiling, min, idleTimeout, createJobQueue(min)));
+        } else if (maxThreads > 0) {
             int max = maxThreads;
             int min = (minThreads > 0) ? minThreads : 8;
             int idleTimeout = (threadTimeoutMillis > 0) ? threadTimeoutMillis : 60000;
 
-            server = new Server(new QueuedThreadPool(max, min, idleTimeout));
+            server = new Server(new QueuedThreadPool(max, min, idleTimeout, createJobQueue(min)));
         } else {
             server = new Server();
         }
@@ -48,10 +71,49 @@ public class MyCustomJettyThreadPoolConfigFactory implements JettyServerFactory
         return server;
     }
 
+    // null means QueuedThreadPool's default, which grows without limit
+    private BlockingQueue<Runnable> createJobQueue(int minThreads) {
+        if (maxQueuedJobs <= 0) {
+            return null;
+        }
+        int capacity = Math.min(Math.max(minThreads, 8), maxQueuedJobs);
+        return new BlockingArrayQueue<>(capacity, capacity, maxQueuedJobs);
+    }
+
     public Server create(ThreadPool threadPool) {
         return threadPool != null ? new Server(threadPool) : new Server();
     }
 
+    /**
+     * Run request handling on virtual threads (java 21+), see VirtualThreadPool.
+     */
+    public MyCustomJettyThreadPoolConfigFactory withVirtualThreads(boolean virtualThreads) {
+        if (virtualThreads && !VirtualThreadPool.isSupported()) {
+            throw new UnsupportedOperationException("Virtual threads need java 21 or later");
+        }
+        this.virtualThreads = virtualThreads;
+        return this;
+    }
+
+    /**
+     * Bound the thread pool's job queue: once it's full, new jobs are rejected and Jetty drops
+     * the connection rather than letting latency grow without limit. Pass 0 for the default unbounded queue.
+     * Pair this with an AdmissionControlHandler, which turns overload into proper 503s before it gets this far.
+     */
+    public MyCustomJettyThreadPoolConfigFactory withMaxQueuedJobs(int maxQueuedJobs) {
+        this.maxQueuedJobs = maxQueuedJobs;
+        return this;
+    }
+
+    /**
+     * Let maxThreads grow up to ceilingMaxThreads under load, see AutoscalingThreadPool.
+     * Pass 0 to go back to a fixed pool.
+     */
+    public MyCustomJettyThreadPoolConfigFactory withAutoscaling(int ceilingMaxThreads) {
+        this.autoscalingCeiling = ceilingMaxThreads;
+        return this;
+    }
+
 }
 
 
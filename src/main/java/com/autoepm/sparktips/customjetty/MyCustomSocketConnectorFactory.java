@@ -18,6 +18,13 @@
 
 package com.autoepm.sparktips.customjetty;
 
+import org.eclipse.jetty.alpn.server.ALPNServerConnectionFactory;
+import org.eclipse.jetty.http.HttpVersion;
+import org.eclipse.jetty.http2.HTTP2Cipher;
+import org.eclipse.jetty.http2.server.AbstractHTTP2ServerConnectionFactory;
+import org.eclipse.jetty.http2.server.HTTP2CServerConnectionFactory;
+import org.eclipse.jetty.http2.server.HTTP2ServerConnectionFactory;
+import org.eclipse.jetty.io.ByteBufferPool;
 import org.eclipse.jetty.server.*;
 import org.eclipse.jetty.util.ssl.SslContextFactory;
 import org.slf4j.Logger;
@@ -26,7 +33,9 @@ import spark.embeddedserver.jetty.SocketConnectorFactory;
 import spark.ssl.SslStores;
 import spark.utils.Assert;
 
-import java.util.concurrent.TimeUnit;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * ServerConnector factory, where you can tweak ssl parameters etc
@@ -36,12 +45,25 @@ public class MyCustomSocketConnectorFactory extends SocketConnectorFactory {
 
     // plain http
     public static ServerConnector createSocketConnector(Server server, String host, int port) {
+        return createSocketConnector(server, host, port, new ConnectorOptions());
+    }
+
+    // plain http, optionally with h2c next to http/1.1
+    public static ServerConnector createSocketConnector(Server server, String host, int port, ConnectorOptions options) {
         Assert.notNull(server, "'server' must not be null");
         Assert.notNull(host, "'host' must not be null");
+        Assert.notNull(options, "'options' must not be null");
 
-        HttpConnectionFactory httpConnectionFactory = createHttpConnectionFactory();
-        ServerConnector connector = new ServerConnector(server, httpConnectionFactory);
-        initializeConnector(connector, host, port);
+        HttpConfiguration httpConfig = createHttpConfiguration(options);
+        HttpConnectionFactory httpConnectionFactory = new HttpConnectionFactory(httpConfig);
+        ServerConnector connector;
+        if (options.isHttp2Cleartext()) {
+            // http/1.1 stays the default protocol, h2c is reached through Upgrade or prior knowledge
+            connector = newServerConnector(server, options, httpConnectionFactory, createHttp2CleartextConnectionFactory(httpConfig, options));
+        } else {
+            connector = newServerConnector(server, options, httpConnectionFactory);
+        }
+        initializeConnector(connector, host, port, options);
         /* ********* CUSTOMIZATION POINT ***************
          * If you need any extra option on your regular connector, this is where to add it
          */
@@ -50,25 +72,58 @@ public class MyCustomSocketConnectorFactory extends SocketConnectorFactory {
         return connector;
     }
 
+    // plain http, one connector per shard (see ConnectorOptions.withShards), all on the same port
+    public static List<ServerConnector> createSocketConnectors(Server server, String host, int port, ConnectorOptions options) {
+        List<ServerConnector> connectors = new ArrayList<>();
+        for (int shard = 0; shard < options.getShards(); shard++) {
+            connectors.add(nameShard(createSocketConnector(server, host, port, options), shard, options));
+        }
+        return connectors;
+    }
+
     // ssl / tls https.
     public static ServerConnector createSecureSocketConnector(Server server, String host, int port, SslStores sslStores) {
-        Assert.notNull(server, "'server' must not be null");
-        Assert.notNull(host, "'host' must not be null");
+        return createSecureSocketConnector(server, host, port, sslStores, new ConnectorOptions());
+    }
+
+    // ssl / tls https, optionally with h2 negotiated through ALPN
+    public static ServerConnector createSecureSocketConnector(Server server, String host, int port, SslStores sslStores, ConnectorOptions options) {
+        Assert.notNull(sslStores, "'sslStores' must not be null");
+        Assert.notNull(options, "'options' must not be null");
+        return createSecureSocketConnector(server, host, port, createSslContextFactory(sslStores, options), options);
+    }
+
+    // ssl / tls https, one connector per shard. They share the SslContextFactory, and so the session cache:
+    // a returning client can resume whichever shard the kernel sends it to
+    public static List<ServerConnector> createSecureSocketConnectors(Server server, String host, int port, SslStores sslStores, ConnectorOptions options) {
         Assert.notNull(sslStores, "'sslStores' must not be null");
+        Assert.notNull(options, "'options' must not be null");
+        SslContextFactory sslContextFactory = createSslContextFactory(sslStores, options);
+        List<ServerConnector> connectors = new ArrayList<>();
+        for (int shard = 0; shard < options.getShards(); shard++) {
+            connectors.add(nameShard(createSecureSocketConnector(server, host, port, sslContextFactory, options), shard, options));
+        }
+        return connectors;
+    }
 
+    private static SslContextFactory createSslContextFactory(SslStores sslStores, ConnectorOptions options) {
         SslContextFactory sslContextFactory = new SslContextFactory(sslStores.keystoreFile());
 
         /* ********* CUSTOMIZATION POINT ***************
         this is where you can set any custom SSL-related option.
-        In this case, as an example, I'm overriding the default choice of algorithms and ciphers.
+        In this case, as an example, I'm overriding the default choice of algorithms and ciphers
+        with the profile picked in ConnectorOptions (see SSLOptions).
         Note how I don't touch anything to do with sslStores, so the secure() spark API still works the same.
          */
         // first we need to clear existing exclusions
         sslContextFactory.setExcludeProtocols(new String[]{});
         sslContextFactory.setExcludeCipherSuites(new String[]{});
-        // then we re-add what we want
-        sslContextFactory.setExcludeProtocols(SSLOptions.PROTOCOLS);
-        sslContextFactory.setIncludeCipherSuites(SSLOptions.CIPHERS);
+        // then we re-add what we want, in order of preference
+        SSLOptions.Profile profile = options.getTlsProfile();
+        sslContextFactory.setIncludeProtocols(profile.protocols());
+        sslContextFactory.setIncludeCipherSuites(profile.ciphers());
+        sslContextFactory.setUseCipherSuitesOrder(true);
+        configureTlsSessions(sslContextFactory, options);
 
 
         if (sslStores.keystorePassword() != null) {
@@ -92,25 +147,143 @@ public class MyCustomSocketConnectorFactory extends SocketConnectorFactory {
             sslContextFactory.setWantClientAuth(true);
         }
 
-        HttpConnectionFactory httpConnectionFactory = createHttpConnectionFactory();
-        ServerConnector connector = new ServerConnector(server, sslContextFactory, httpConnectionFactory);
-        initializeConnector(connector, host, port);
+        if (options.isHttp2()) {
+            // h2 forbids a bunch of older suites, so make sure the good ones are picked first
+            sslContextFactory.setCipherComparator(HTTP2Cipher.COMPARATOR);
+        }
+        return sslContextFactory;
+    }
+
+    private static ServerConnector createSecureSocketConnector(Server server, String host, int port, SslContextFactory sslContextFactory, ConnectorOptions options) {
+        Assert.notNull(server, "'server' must not be null");
+        Assert.notNull(host, "'host' must not be null");
+
+        HttpConfiguration httpConfig = createHttpConfiguration(options);
+        httpConfig.addCustomizer(new SecureRequestCustomizer());
+        HttpConnectionFactory httpConnectionFactory = new HttpConnectionFactory(httpConfig);
+        ServerConnector connector;
+        if (options.isHttp2()) {
+            HTTP2ServerConnectionFactory h2 = new HTTP2ServerConnectionFactory(httpConfig);
+            configureHttp2(h2, options);
+            ALPNServerConnectionFactory alpn = new ALPNServerConnectionFactory(h2.getProtocol(), httpConnectionFactory.getProtocol());
+            alpn.setDefaultProtocol(httpConnectionFactory.getProtocol());
+            SslConnectionFactory ssl = new SslConnectionFactory(sslContextFactory, alpn.getProtocol());
+            connector = newServerConnector(server, options, ssl, alpn, h2, httpConnectionFactory);
+        } else {
+            SslConnectionFactory ssl = new SslConnectionFactory(sslContextFactory, HttpVersion.HTTP_1_1.asString());
+            connector = newServerConnector(server, options, ssl, httpConnectionFactory);
+        }
+        initializeConnector(connector, host, port, options);
 
         logger.info("HEY MY CUSTOM THINGY WORKS!! come say thanks at https://www.linkedin.com/in/glacava/");
 
         return connector;
     }
 
-    private static void initializeConnector(ServerConnector connector, String host, int port) {
-        connector.setIdleTimeout(TimeUnit.HOURS.toMillis(1L));
+    // a null pool means Jetty's default ArrayByteBufferPool
+    private static ServerConnector newServerConnector(Server server, ConnectorOptions options, ConnectionFactory... factories) {
+        int shards = options.getShards();
+        int acceptors = options.getAcceptors();
+        int selectors = options.getSelectors();
+        if (shards > 1) {
+            // Jetty's defaults are per connector, so N shards would get N times the threads
+            if (acceptors < 0) {
+                acceptors = 1;
+            }
+            if (selectors <= 0) {
+                selectors = Math.max(1, Runtime.getRuntime().availableProcessors() / 2 / shards);
+            }
+        }
+        TunedServerConnector connector = new TunedServerConnector(server, options.getByteBufferPool(), acceptors, selectors, factories);
+        /* ********* CUSTOMIZATION POINT ***************
+         * Socket level options, shared by the plain and secure connectors.
+         */
+        connector.setReusePort(options.isReusePort() || shards > 1, shards > 1);
+        connector.setTcpNoDelay(options.isTcpNoDelay());
+        if (options.getAcceptQueueSize() > 0) {
+            connector.setAcceptQueueSize(options.getAcceptQueueSize());
+        }
+        return connector;
+    }
+
+    /**
+     * Fill the connector's buffer pool with count buffers of each size a new HTTP/1.1 connection asks for:
+     * request (heap), response header (heap) and response body aggregation (direct, the slow ones to allocate).
+     */
+    static void prewarmBuffers(ServerConnector connector, int count) {
+        HttpConnectionFactory http = connector.getConnectionFactory(HttpConnectionFactory.class);
+        ByteBufferPool pool = connector.getByteBufferPool();
+        if (http == null || pool == null || count <= 0) {
+            return;
+        }
+        HttpConfiguration httpConfig = http.getHttpConfiguration();
+        prewarmBuffers(pool, http.getInputBufferSize(), false, count);
+        prewarmBuffers(pool, httpConfig.getResponseHeaderSize(), false, count);
+        prewarmBuffers(pool, httpConfig.getOutputBufferSize(), true, count);
+    }
+
+    private static void prewarmBuffers(ByteBufferPool pool, int size, boolean direct, int count) {
+        // all acquired before any is released, or the pool would hand the same one back every time
+        ByteBuffer[] buffers = new ByteBuffer[count];
+        for (int i = 0; i < count; i++) {
+            buffers[i] = pool.acquire(size, direct);
+        }
+        for (ByteBuffer buffer : buffers) {
+            pool.release(buffer);
+        }
+    }
+
+    private static ServerConnector nameShard(ServerConnector connector, int shard, ConnectorOptions options) {
+        if (options.getShards() > 1) {
+            connector.setName("shard-" + shard);
+        }
+        return connector;
+    }
+
+    private static void initializeConnector(ServerConnector connector, String host, int port, ConnectorOptions options) {
+        connector.setIdleTimeout(options.getIdleTimeoutMillis());
         connector.setHost(host);
         connector.setPort(port);
     }
 
-    private static HttpConnectionFactory createHttpConnectionFactory() {
+    private static void configureTlsSessions(SslContextFactory sslContextFactory, ConnectorOptions options) {
+        if (options.getTlsSessionCacheSize() >= 0) {
+            sslContextFactory.setSslSessionCacheSize(options.getTlsSessionCacheSize());
+        }
+        if (options.getTlsSessionTimeoutSeconds() >= 0) {
+            sslContextFactory.setSslSessionTimeout(options.getTlsSessionTimeoutSeconds());
+        }
+    }
+
+    private static HttpConfiguration createHttpConfiguration(ConnectorOptions options) {
         HttpConfiguration httpConfig = new HttpConfiguration();
         httpConfig.setSecureScheme("https");
         httpConfig.addCustomizer(new ForwardedRequestCustomizer());
-        return new HttpConnectionFactory(httpConfig);
+        if (options.getOutputBufferSize() > 0) {
+            httpConfig.setOutputBufferSize(options.getOutputBufferSize());
+        }
+        if (options.getOutputAggregationSize() > 0) {
+            httpConfig.setOutputAggregationSize(options.getOutputAggregationSize());
+        }
+        if (options.getRequestHeaderSize() > 0) {
+            httpConfig.setRequestHeaderSize(options.getRequestHeaderSize());
+        }
+        if (options.getResponseHeaderSize() > 0) {
+            httpConfig.setResponseHeaderSize(options.getResponseHeaderSize());
+        }
+        return httpConfig;
+    }
+
+    private static HTTP2CServerConnectionFactory createHttp2CleartextConnectionFactory(HttpConfiguration httpConfig, ConnectorOptions options) {
+        HTTP2CServerConnectionFactory h2c = new HTTP2CServerConnectionFactory(httpConfig);
+        configureHttp2(h2c, options);
+        return h2c;
+    }
+
+    private static void configureHttp2(AbstractHTTP2ServerConnectionFactory factory, ConnectorOptions options) {
+        factory.setMaxConcurrentStreams(options.getHttp2MaxConcurrentStreams());
+        factory.setInitialSessionRecvWindow(options.getHttp2InitialSessionRecvWindow());
+        factory.setInitialStreamRecvWindow(options.getHttp2InitialStreamRecvWindow());
+        factory.setMaxDynamicTableSize(options.getHttp2MaxDynamicTableSize());
     }
 }
@@ -0,0 +1,196 @@
+/*
+ * Copyright 2019 Giacomo Lacava
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package com.autoepm.sparktips.customjetty;
+
+import org.eclipse.jetty.server.Handler;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.handler.HandlerCollection;
+import org.eclipse.jetty.util.ArrayTernaryTrie;
+import org.eclipse.jetty.util.Trie;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Sends each request straight to the one handler registered for its path, instead of offering it
+ * to every handler in turn like a HandlerList does. Paths live in a trie (the same one Jetty's
+ * ContextHandlerCollection uses for context paths), so a lookup costs the length of the path,
+ * not the number of registered handlers. The longest matching registration wins.
+ * Anything that matches nothing, or that the matched handler leaves unhandled, goes to the
+ * default handler, which is normally the Spark one.
+ **/
+public class PathDispatchHandler extends HandlerCollection {
+
+    // the trie stores row indexes in chars
+    private static final int MAX_CAPACITY = Character.MAX_VALUE;
+
+    private final Handler defaultHandler;
+    private final TreeMap<String, Entry> entries = new TreeMap<>();
+    private volatile Trie<Entry> trie;
+
+    public PathDispatchHandler(Handler defaultHandler) {
+        super(true);
+        this.defaultHandler = defaultHandler;
+        addHandler(defaultHandler);
+    }
+
+    public Handler getDefaultHandler() {
+        return defaultHandler;
+    }
+
+    /**
+     * The handler gets pathPrefix itself and everything under it, e.g. "/assets" gets "/assets"
+     * and "/assets/app.js" but not "/assetsfoo".
+     */
+    public PathDispatchHandler withPrefix(String pathPrefix, Handler handler) {
+        // "/api/" and "/api" are the same prefix
+        String key = pathPrefix != null && pathPrefix.length() > 1 && pathPrefix.endsWith("/")
+                ? pathPrefix.substring(0, pathPrefix.length() - 1) : pathPrefix;
+        entry(key).prefix = handler;
+        return added(handler);
+    }
+
+    /**
+     * The handler only gets exactly this path, trailing slash included.
+     */
+    public PathDispatchHandler withPath(String path, Handler handler) {
+        entry(path).exact = handler;
+        return added(handler);
+    }
+
+    /**
+     * The handler only gets websocket upgrades for exactly this path, trailing slash included
+     * ("/ws/" is not "/ws", same as the servlet mapping behind it); plain requests for it are
+     * left to whatever else matches, so a Spark route can live on the same path.
+     */
+    public PathDispatchHandler withWebSocketPath(String path, Handler handler) {
+        entry(path).webSocket = handler;
+        return added(handler);
+    }
+
+    private Entry entry(String path) {
+        if (path == null || !path.startsWith("/")) {
+            throw new IllegalArgumentException("paths must start with '/': " + path);
+        }
+        synchronized (entries) {
+            return entries.computeIfAbsent(path, Entry::new);
+        }
+    }
+
+    private PathDispatchHandler added(Handler handler) {
+        if (!Arrays.asList(getHandlers()).contains(handler)) {
+            addHandler(handler);
+        }
+        if (isStarted()) {
+            mapPaths();
+        }
+        return this;
+    }
+
+    @Override
+    protected void doStart() throws Exception {
+        mapPaths();
+        super.doStart();
+    }
+
+    private void mapPaths() {
+        synchronized (entries) {
+            // grow until everything fits, like ContextHandlerCollection does
+            int capacity = 512;
+            loop:
+            while (true) {
+                Trie<Entry> candidate = new ArrayTernaryTrie<>(false, capacity);
+                for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+                    if (!candidate.put(entry.getKey(), entry.getValue())) {
+                        if (capacity >= MAX_CAPACITY) {
+                            throw new IllegalStateException("too many paths to dispatch: " + entries.size());
+                        }
+                        capacity = Math.min(MAX_CAPACITY, capacity * 2);
+                        continue loop;
+                    }
+                }
+                trie = candidate;
+                return;
+            }
+        }
+    }
+
+    @Override
+    public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response) throws IOException, ServletException {
+        if (!isStarted()) {
+            return;
+        }
+        Handler handler = find(target, request);
+        handler.handle(target, baseRequest, request, response);
+        if (!baseRequest.isHandled() && handler != defaultHandler) {
+            defaultHandler.handle(target, baseRequest, request, response);
+        }
+    }
+
+    /**
+     * The handler a request for target would go to.
+     */
+    public Handler find(String target, HttpServletRequest request) {
+        Trie<Entry> current = trie;
+        int limit = target.length();
+        while (current != null && limit > 0) {
+            Entry entry = current.getBest(target, 0, limit);
+            if (entry == null) {
+                break;
+            }
+            Handler handler = entry.select(target, request);
+            if (handler != null) {
+                return handler;
+            }
+            // wrong boundary (e.g. "/api" for "/apix") or wrong kind of request, try shorter paths
+            limit = entry.path.length() - 1;
+        }
+        return defaultHandler;
+    }
+
+    private static class Entry {
+        private final String path;
+        private Handler exact;
+        private Handler prefix;
+        private Handler webSocket;
+
+        private Entry(String path) {
+            this.path = path;
+        }
+
+        private Handler select(String target, HttpServletRequest request) {
+            int length = path.length();
+            boolean whole = target.length() == length;
+            if (whole && webSocket != null && "websocket".equalsIgnoreCase(request.getHeader("Upgrade"))) {
+                return webSocket;
+            }
+            if (whole && exact != null) {
+                return exact;
+            }
+            if (prefix != null && (whole || length == 1 || target.charAt(length) == '/')) {
+                return prefix;
+            }
+            return null;
+        }
+    }
+}
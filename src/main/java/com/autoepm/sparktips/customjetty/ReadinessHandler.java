@@ -0,0 +1,55 @@
+/*
+ * Copyright 2019 Giacomo Lacava
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package com.autoepm.sparktips.customjetty;
+
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.handler.HandlerWrapper;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+
+/**
+ * Answers GETs to the readiness path from StartupOptions: 200 when the server is started,
+ * 503 while it's still starting or already stopping. Everything else goes through untouched.
+ **/
+class ReadinessHandler extends HandlerWrapper {
+
+    private final String readinessPath;
+
+    ReadinessHandler(String readinessPath) {
+        this.readinessPath = readinessPath;
+    }
+
+    @Override
+    public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response) throws IOException, ServletException {
+        if (!readinessPath.equals(target) || !"GET".equals(request.getMethod())) {
+            super.handle(target, baseRequest, request, response);
+            return;
+        }
+        // the connectors are up a moment before the server counts as started, and it stops counting
+        // as started as soon as stop() begins, drain included
+        boolean ready = getServer() != null && getServer().isStarted();
+        response.setStatus(ready ? HttpServletResponse.SC_OK : HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+        response.setContentType("text/plain; charset=utf-8");
+        response.setHeader("Cache-Control", "no-store");
+        response.getWriter().write(ready ? "ready" : "not ready");
+        baseRequest.setHandled(true);
+    }
+}
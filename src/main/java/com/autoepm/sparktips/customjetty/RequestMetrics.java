@@ -0,0 +1,212 @@
+/*
+ * Copyright 2019 Giacomo Lacava
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package com.autoepm.sparktips.customjetty;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Request counters and latency histograms, one set per route (the matched Spark route pattern,
+ * e.g. "GET /users/:id", so ids don't blow up the number of series).
+ * Everything is cumulative since startup. Read it from Java with snapshot(), or as Prometheus
+ * text with writePrometheus(); RequestMetricsHandler can serve the latter on e.g. /metrics.
+ **/
+public class RequestMetrics {
+
+    private final ConcurrentHashMap<String, Route> routes = new ConcurrentHashMap<>();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final List<Exporter> exporters = new CopyOnWriteArrayList<>();
+
+    /**
+     * Counters for a route, created the first time it's seen. Hang on to the result if you can,
+     * lookups are cheap but not free.
+     */
+    public Route route(String label) {
+        Route route = routes.get(label);
+        return route != null ? route : routes.computeIfAbsent(label, Route::new);
+    }
+
+    /**
+     * Anything else that should show up on the same metrics page, e.g. a ConnectionGovernor.
+     */
+    public RequestMetrics withExporter(Exporter exporter) {
+        exporters.add(exporter);
+        return this;
+    }
+
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    void requestStarted() {
+        inFlight.incrementAndGet();
+    }
+
+    void requestFinished() {
+        inFlight.decrementAndGet();
+    }
+
+    /**
+     * Route label -> counters, sorted by label.
+     */
+    public Map<String, RouteSnapshot> snapshot() {
+        Map<String, RouteSnapshot> snapshot = new TreeMap<>();
+        for (Route route : routes.values()) {
+            snapshot.put(route.label, route.snapshot());
+        }
+        return Collections.unmodifiableMap(snapshot);
+    }
+
+    /**
+     * Prometheus text exposition format (version 0.0.4).
+     */
+    public void writePrometheus(Writer out) throws IOException {
+        Map<String, RouteSnapshot> snapshot = snapshot();
+        out.write("# HELP spark_requests_in_flight Requests being handled right now.\n");
+        out.write("# TYPE spark_requests_in_flight gauge\n");
+        out.write("spark_requests_in_flight " + getInFlight() + "\n");
+
+        out.write("# HELP spark_request_duration_seconds Request latency by route.\n");
+        out.write("# TYPE spark_request_duration_seconds summary\n");
+        for (RouteSnapshot route : snapshot.values()) {
+            String label = "route=\"" + escape(route.getLabel()) + "\"";
+            LatencyHistogram.Snapshot latency = route.getLatency();
+            for (double quantile : new double[]{0.5, 0.9, 0.99, 0.999}) {
+                out.write("spark_request_duration_seconds{" + label + ",quantile=\"" + quantile + "\"} "
+                        + seconds(latency.getPercentileMicros(quantile * 100)) + "\n");
+            }
+            out.write("spark_request_duration_seconds_sum{" + label + "} " + seconds(latency.getTotalMicros()) + "\n");
+            out.write("spark_request_duration_seconds_count{" + label + "} " + latency.getCount() + "\n");
+        }
+
+        writeCounter(out, snapshot, "spark_request_errors_total", "Requests answered with a 5xx status.", RouteSnapshot::getErrors);
+        writeCounter(out, snapshot, "spark_request_bytes_received_total", "Request body bytes read.", RouteSnapshot::getBytesIn);
+        writeCounter(out, snapshot, "spark_response_bytes_sent_total", "Response bytes written.", RouteSnapshot::getBytesOut);
+        for (Exporter exporter : exporters) {
+            exporter.writePrometheus(out);
+        }
+        out.flush();
+    }
+
+    /**
+     * Writes its own metric families, in Prometheus text format, after the request ones.
+     */
+    public interface Exporter {
+        void writePrometheus(Writer out) throws IOException;
+    }
+
+    private interface Counter {
+        long get(RouteSnapshot route);
+    }
+
+    private static void writeCounter(Writer out, Map<String, RouteSnapshot> snapshot, String name, String help, Counter counter) throws IOException {
+        out.write("# HELP " + name + " " + help + "\n");
+        out.write("# TYPE " + name + " counter\n");
+        for (RouteSnapshot route : snapshot.values()) {
+            out.write(name + "{route=\"" + escape(route.getLabel()) + "\"} " + counter.get(route) + "\n");
+        }
+    }
+
+    private static String seconds(long micros) {
+        return Double.toString(micros / 1_000_000.0);
+    }
+
+    static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    /**
+     * Live counters for one route. record() is what the handler calls, it doesn't allocate.
+     */
+    public static class Route {
+        private final String label;
+        private final LatencyHistogram latency = new LatencyHistogram();
+        private final LongAdder errors = new LongAdder();
+        private final LongAdder bytesIn = new LongAdder();
+        private final LongAdder bytesOut = new LongAdder();
+
+        private Route(String label) {
+            this.label = label;
+        }
+
+        public String getLabel() {
+            return label;
+        }
+
+        public void record(long latencyNanos, int status, long bytesIn, long bytesOut) {
+            latency.recordNanos(latencyNanos);
+            if (status >= 500) {
+                errors.increment();
+            }
+            this.bytesIn.add(bytesIn);
+            this.bytesOut.add(bytesOut);
+        }
+
+        private RouteSnapshot snapshot() {
+            return new RouteSnapshot(label, latency.snapshot(), errors.sum(), bytesIn.sum(), bytesOut.sum());
+        }
+    }
+
+    public static class RouteSnapshot {
+        private final String label;
+        private final LatencyHistogram.Snapshot latency;
+        private final long errors;
+        private final long bytesIn;
+        private final long bytesOut;
+
+        private RouteSnapshot(String label, LatencyHistogram.Snapshot latency, long errors, long bytesIn, long bytesOut) {
+            this.label = label;
+            this.latency = latency;
+            this.errors = errors;
+            this.bytesIn = bytesIn;
+            this.bytesOut = bytesOut;
+        }
+
+        public String getLabel() {
+            return label;
+        }
+
+        public long getRequests() {
+            return latency.getCount();
+        }
+
+        public LatencyHistogram.Snapshot getLatency() {
+            return latency;
+        }
+
+        public long getErrors() {
+            return errors;
+        }
+
+        public long getBytesIn() {
+            return bytesIn;
+        }
+
+        public long getBytesOut() {
+            return bytesOut;
+        }
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2019 Giacomo Lacava
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package com.autoepm.sparktips.customjetty;
+
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.handler.HandlerWrapper;
+
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.DispatcherType;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Times every request and records it against its route in a RequestMetrics.
+ * Sits at the top of the handler chain, so it sees websocket upgrades and everything else too.
+ * If a metrics path is set, GETs to it are answered straight away with the Prometheus text format.
+ **/
+public class RequestMetricsHandler extends HandlerWrapper {
+
+    private final RequestMetrics metrics;
+    private final RouteResolver resolver;
+    private final String metricsPath;
+
+    public RequestMetricsHandler(RequestMetrics metrics, RouteResolver resolver, String metricsPath) {
+        this.metrics = metrics;
+        this.resolver = resolver;
+        this.metricsPath = metricsPath;
+    }
+
+    public RequestMetrics getMetrics() {
+        return metrics;
+    }
+
+    @Override
+    public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response) throws IOException, ServletException {
+        if (metricsPath != null && metricsPath.equals(target) && "GET".equals(request.getMethod())) {
+            response.setStatus(HttpServletResponse.SC_OK);
+            response.setContentType("text/plain; version=0.0.4; charset=utf-8");
+            try (Writer writer = response.getWriter()) {
+                metrics.writePrometheus(writer);
+            }
+            baseRequest.setHandled(true);
+            return;
+        }
+        if (request.getDispatcherType() != DispatcherType.REQUEST) {
+            // async re-dispatch, already being timed
+            super.handle(target, baseRequest, request, response);
+            return;
+        }
+
+        RequestMetrics.Route route = resolver.resolve(request);
+        long start = System.nanoTime();
+        metrics.requestStarted();
+        try {
+            super.handle(target, baseRequest, request, response);
+        } finally {
+            if (request.isAsyncStarted()) {
+                request.getAsyncContext().addListener(new CompletionListener(route, start, baseRequest));
+            } else {
+                finished(route, start, baseRequest);
+            }
+        }
+    }
+
+    private void finished(RequestMetrics.Route route, long start, Request baseRequest) {
+        metrics.requestFinished();
+        route.record(System.nanoTime() - start, baseRequest.getResponse().getStatus(),
+                baseRequest.getContentRead(), baseRequest.getHttpChannel().getBytesWritten());
+    }
+
+    /**
+     * Decides which route a request is counted against.
+     */
+    public interface RouteResolver {
+        RequestMetrics.Route resolve(HttpServletRequest request);
+    }
+
+    private class CompletionListener implements AsyncListener {
+        private final RequestMetrics.Route route;
+        private final long start;
+        private final Request baseRequest;
+
+        private CompletionListener(RequestMetrics.Route route, long start, Request baseRequest) {
+            this.route = route;
+            this.start = start;
+            this.baseRequest = baseRequest;
+        }
+
+        @Override
+        public void onComplete(AsyncEvent event) {
+            finished(route, start, baseRequest);
+        }
+
+        @Override
+        public void onTimeout(AsyncEvent event) {
+        }
+
+        @Override
+        public void onError(AsyncEvent event) {
+        }
+
+        @Override
+        public void onStartAsync(AsyncEvent event) {
+            event.getAsyncContext().addListener(this);
+        }
+    }
+}
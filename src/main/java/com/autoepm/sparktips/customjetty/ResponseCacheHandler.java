@@ -0,0 +1,671 @@
+/*
+ * Copyright 2019 Giacomo Lacava
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package com.autoepm.sparktips.customjetty;
+
+import org.eclipse.jetty.http.HttpHeader;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.handler.HandlerWrapper;
+import org.eclipse.jetty.util.annotation.ManagedAttribute;
+import org.eclipse.jetty.util.annotation.ManagedObject;
+import org.eclipse.jetty.util.thread.ScheduledExecutorScheduler;
+import org.eclipse.jetty.util.thread.Scheduler;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.DispatcherType;
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Caches GET responses for the path prefixes it's told about, so repeated hits don't run the route again.
+ * Entries are keyed by path, query string and any headers given to withKeyHeaders(), kept in direct
+ * (off-heap) buffers and evicted least recently used once the total goes over maxBytes.
+ * Every entry gets a strong ETag, and If-None-Match is answered with a 304.
+ * Concurrent misses for the same key wait for the first one instead of all running the route; they're
+ * suspended while they wait, so a stampede on a slow route doesn't tie up the thread pool.
+ * Requests with an Authorization header are never cached, and neither are ones with cookies unless
+ * "Cookie" is one of the key headers.
+ * A route can opt out per response with Cache-Control: no-store or private, or shorten/extend the
+ * TTL with max-age / s-maxage; responses that set cookies or aren't a 200 are never cached.
+ **/
+@ManagedObject("Response cache")
+public class ResponseCacheHandler extends HandlerWrapper implements RequestMetrics.Exporter {
+    // response headers that belong to one particular response, not to the cached content
+    private static final String[] SKIPPED_HEADERS = {"Date", "Content-Length", "Transfer-Encoding", "Connection", "ETag"};
+
+    private final String followerAttribute = ResponseCacheHandler.class.getName() + "@" + Integer.toHexString(hashCode());
+    // path prefix -> ttl in millis, longest prefix first
+    private final TreeMap<String, Long> ttls = new TreeMap<>((a, b) -> a.length() != b.length() ? b.length() - a.length() : a.compareTo(b));
+    private final List<String> keyHeaders = new ArrayList<>();
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(256, 0.75f, true);
+    private final ConcurrentHashMap<String, CompletableFuture<Entry>> misses = new ConcurrentHashMap<>();
+    private long maxBytes = 64 * 1024 * 1024;
+    private int maxEntryBytes = 1024 * 1024;
+    private final Scheduler scheduler = new ScheduledExecutorScheduler("response-cache-followers", true);
+    private long coalesceWaitMillis = 10000;
+    private long bytes;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong notModified = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    public ResponseCacheHandler() {
+        addBean(scheduler);
+    }
+
+    /**
+     * Cache GETs to paths starting with pathPrefix for ttlSeconds, unless the response says otherwise.
+     */
+    public ResponseCacheHandler withRoute(String pathPrefix, long ttlSeconds) {
+        ttls.put(pathPrefix, TimeUnit.SECONDS.toMillis(ttlSeconds));
+        return this;
+    }
+
+    /**
+     * Request headers the response depends on, e.g. "Accept" or "Accept-Language".
+     * They become part of the key, so every combination is cached separately.
+     */
+    public ResponseCacheHandler withKeyHeaders(String... headers) {
+        for (String header : headers) {
+            keyHeaders.add(header);
+        }
+        return this;
+    }
+
+    /**
+     * Total size of cached bodies, off-heap.
+     */
+    public ResponseCacheHandler withMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+        return this;
+    }
+
+    /**
+     * Bigger responses are streamed straight through and not cached.
+     */
+    public ResponseCacheHandler withMaxEntryBytes(int maxEntryBytes) {
+        this.maxEntryBytes = maxEntryBytes;
+        return this;
+    }
+
+    /**
+     * How long a request waits for someone else's miss on the same key before running the route itself.
+     * The wait is suspended, also inside a bulkhead (see BulkheadHandler.takeOver()); it only holds
+     * a thread when the request has already been suspended by someone else.
+     */
+    public ResponseCacheHandler withCoalesceWaitMillis(long coalesceWaitMillis) {
+        this.coalesceWaitMillis = coalesceWaitMillis;
+        return this;
+    }
+
+    @Override
+    public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response) throws IOException, ServletException {
+        Object follower = request.getAttribute(followerAttribute);
+        if (follower != null && request.getDispatcherType() == DispatcherType.ASYNC) {
+            // resumed after waiting for another request's miss
+            request.removeAttribute(followerAttribute);
+            follow(((Follower) follower).entry, target, baseRequest, request, response);
+            return;
+        }
+
+        String method = request.getMethod();
+        Long ttl = request.getDispatcherType() == DispatcherType.REQUEST ? ttlFor(target) : null;
+        // anything with credentials would need them in the key, so it's not ours to cache
+        if (ttl == null || !("GET".equals(method) || "HEAD".equals(method))
+                || request.getHeader(HttpHeader.AUTHORIZATION.asString()) != null
+                || (request.getHeader(HttpHeader.COOKIE.asString()) != null && !isKeyHeader(HttpHeader.COOKIE.asString()))) {
+            super.handle(target, baseRequest, request, response);
+            return;
+        }
+
+        String key = key(target, request);
+        boolean refresh = hasDirective(request.getHeader(HttpHeader.CACHE_CONTROL.asString()), "no-cache");
+        Entry entry = refresh ? null : get(key);
+        if (entry != null) {
+            hits.incrementAndGet();
+            serve(entry, baseRequest, request, response, "HIT");
+            return;
+        }
+        if ("HEAD".equals(method)) {
+            super.handle(target, baseRequest, request, response);
+            return;
+        }
+
+        CompletableFuture<Entry> mine = new CompletableFuture<>();
+        CompletableFuture<Entry> leader = misses.putIfAbsent(key, mine);
+        if (leader != null) {
+            if (leader.isDone() || (request.isAsyncStarted() && !BulkheadHandler.canTakeOver(request))) {
+                // async can't be started twice, and there's no one to take it over from: wait here
+                follow(await(leader), target, baseRequest, request, response);
+                return;
+            }
+            AsyncContext context = request.isAsyncStarted() ? BulkheadHandler.takeOver(request) : request.startAsync();
+            // a taken over context was armed long ago, so the wait is timed here for both
+            context.setTimeout(0);
+            Follower waiting = new Follower(context);
+            context.addListener(waiting);
+            request.setAttribute(followerAttribute, waiting);
+            baseRequest.setHandled(true);
+            waiting.timeout = scheduler.schedule(() -> waiting.resume(null), coalesceWaitMillis, TimeUnit.MILLISECONDS);
+            leader.thenAccept(waiting::resume);
+            return;
+        }
+
+        missCount.incrementAndGet();
+        entry = null;
+        try {
+            entry = execute(target, baseRequest, request, response, ttl);
+            if (entry != null) {
+                put(key, entry);
+            }
+        } finally {
+            misses.remove(key, mine);
+            mine.complete(entry);
+        }
+    }
+
+    private void follow(Entry entry, String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response) throws IOException, ServletException {
+        if (entry != null) {
+            coalesced.incrementAndGet();
+            serve(entry, baseRequest, request, response, "HIT");
+            return;
+        }
+        // the other request's response wasn't cacheable, or took too long: run it ourselves
+        super.handle(target, baseRequest, request, response);
+    }
+
+    private boolean isKeyHeader(String name) {
+        for (String header : keyHeaders) {
+            if (header.equalsIgnoreCase(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private Long ttlFor(String target) {
+        for (Map.Entry<String, Long> rule : ttls.entrySet()) {
+            if (target.startsWith(rule.getKey())) {
+                return rule.getValue();
+            }
+        }
+        return null;
+    }
+
+    private String key(String target, HttpServletRequest request) {
+        StringBuilder key = new StringBuilder(target);
+        String query = request.getQueryString();
+        if (query != null) {
+            key.append('?').append(query);
+        }
+        for (String header : keyHeaders) {
+            String value = request.getHeader(header);
+            key.append('\n').append(header).append(':').append(value == null ? "" : value);
+        }
+        return key.toString();
+    }
+
+    private Entry await(CompletableFuture<Entry> leader) {
+        try {
+            return leader.get(coalesceWaitMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    // runs the route with the body captured, then sends it on; returns the entry if it can be cached
+    private Entry execute(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response, long ttl) throws IOException, ServletException {
+        CapturingResponse capture = new CapturingResponse(response, maxEntryBytes);
+        // inside a bulkhead the request is async before the route even runs
+        boolean async = request.isAsyncStarted();
+        boolean inBulkhead = BulkheadHandler.canTakeOver(request);
+        super.handle(target, baseRequest, request, capture);
+
+        boolean wentAsync = async ? inBulkhead && !BulkheadHandler.canTakeOver(request) : request.isAsyncStarted();
+        if (wentAsync || capture.isPassThrough()) {
+            // async or too big, whatever comes next goes straight to the client
+            capture.passThrough();
+            return null;
+        }
+        byte[] body = capture.getBody();
+        if (!baseRequest.isHandled()) {
+            // left for the next handler in the list, don't commit anything on its behalf
+            if (body.length > 0) {
+                capture.passThrough();
+            }
+            return null;
+        }
+        Long responseTtl = responseTtl(response, ttl);
+        if (responseTtl == null || responseTtl <= 0) {
+            capture.passThrough();
+            response.getOutputStream().close();
+            return null;
+        }
+
+        Entry entry = new Entry(response, body, System.currentTimeMillis() + responseTtl);
+        serve(entry, baseRequest, request, response, "MISS");
+        return entry;
+    }
+
+    private static Long responseTtl(HttpServletResponse response, long ttl) {
+        if (response.getStatus() != HttpServletResponse.SC_OK || response.containsHeader(HttpHeader.SET_COOKIE.asString())) {
+            return null;
+        }
+        String cacheControl = response.getHeader(HttpHeader.CACHE_CONTROL.asString());
+        if (cacheControl == null) {
+            return ttl;
+        }
+        if (hasDirective(cacheControl, "no-store") || hasDirective(cacheControl, "private") || hasDirective(cacheControl, "no-cache")) {
+            return null;
+        }
+        // s-maxage is meant for shared caches like this one, so it wins over max-age
+        Long sMaxAge = directiveSeconds(cacheControl, "s-maxage");
+        if (sMaxAge != null) {
+            return TimeUnit.SECONDS.toMillis(sMaxAge);
+        }
+        Long maxAge = directiveSeconds(cacheControl, "max-age");
+        return maxAge != null ? TimeUnit.SECONDS.toMillis(maxAge) : ttl;
+    }
+
+    private static boolean hasDirective(String cacheControl, String directive) {
+        if (cacheControl == null) {
+            return false;
+        }
+        for (String part : cacheControl.split(",")) {
+            if (part.trim().equalsIgnoreCase(directive)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static Long directiveSeconds(String cacheControl, String directive) {
+        for (String part : cacheControl.split(",")) {
+            String trimmed = part.trim();
+            if (trimmed.regionMatches(true, 0, directive + "=", 0, directive.length() + 1)) {
+                try {
+                    return Long.parseLong(trimmed.substring(directive.length() + 1).replace("\"", "").trim());
+                } catch (NumberFormatException e) {
+                    return null;
+                }
+            }
+        }
+        return null;
+    }
+
+    private void serve(Entry entry, Request baseRequest, HttpServletRequest request, HttpServletResponse response, String cacheStatus) throws IOException {
+        baseRequest.setHandled(true);
+        if ("HIT".equals(cacheStatus)) {
+            // a miss already has the headers the route set
+            response.setStatus(HttpServletResponse.SC_OK);
+            for (String[] header : entry.headers) {
+                response.addHeader(header[0], header[1]);
+            }
+        }
+        response.setHeader(HttpHeader.ETAG.asString(), entry.etag);
+        response.setHeader("X-Cache", cacheStatus);
+        if (matches(request.getHeader(HttpHeader.IF_NONE_MATCH.asString()), entry.etag)) {
+            notModified.incrementAndGet();
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            response.setContentLength(-1);
+            return;
+        }
+        response.setContentLength(entry.body.capacity());
+        if ("HEAD".equals(request.getMethod())) {
+            return;
+        }
+        // straight from the direct buffer, no copy onto the heap
+        baseRequest.getResponse().getHttpOutput().sendContent(entry.body.duplicate());
+    }
+
+    private static boolean matches(String ifNoneMatch, String etag) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        for (String candidate : ifNoneMatch.split(",")) {
+            String trimmed = candidate.trim();
+            if ("*".equals(trimmed) || etag.equals(trimmed) || ("W/" + etag).equals(trimmed)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private synchronized Entry get(String key) {
+        Entry entry = entries.get(key);
+        if (entry != null && entry.expiresAt <= System.currentTimeMillis()) {
+            entries.remove(key);
+            bytes -= entry.size();
+            return null;
+        }
+        return entry;
+    }
+
+    private synchronized void put(String key, Entry entry) {
+        if (entry.size() > maxBytes) {
+            return;
+        }
+        Entry previous = entries.put(key, entry);
+        if (previous != null) {
+            bytes -= previous.size();
+        }
+        bytes += entry.size();
+        Iterator<Entry> eldest = entries.values().iterator();
+        while (bytes > maxBytes && eldest.hasNext()) {
+            bytes -= eldest.next().size();
+            eldest.remove();
+            evictions.incrementAndGet();
+        }
+    }
+
+    /**
+     * Drop everything, e.g. after the data behind the cached routes has changed.
+     */
+    public synchronized void clear() {
+        entries.clear();
+        bytes = 0;
+    }
+
+    @ManagedAttribute("requests answered from the cache")
+    public long getHits() {
+        return hits.get();
+    }
+
+    @ManagedAttribute("requests that ran the route to fill the cache")
+    public long getMisses() {
+        return missCount.get();
+    }
+
+    @ManagedAttribute("requests that waited for another request's miss instead of running the route")
+    public long getCoalesced() {
+        return coalesced.get();
+    }
+
+    @ManagedAttribute("requests answered with 304 Not Modified")
+    public long getNotModified() {
+        return notModified.get();
+    }
+
+    @ManagedAttribute("entries evicted to stay under maxBytes")
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    @ManagedAttribute("entries in the cache")
+    public synchronized int getEntries() {
+        return entries.size();
+    }
+
+    @ManagedAttribute("bytes of cached bodies, off-heap")
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    @Override
+    public void writePrometheus(Writer out) throws IOException {
+        out.write("# HELP spark_response_cache_requests_total Requests for cached routes, by how they were answered.\n");
+        out.write("# TYPE spark_response_cache_requests_total counter\n");
+        out.write("spark_response_cache_requests_total{result=\"hit\"} " + getHits() + "\n");
+        out.write("spark_response_cache_requests_total{result=\"miss\"} " + getMisses() + "\n");
+        out.write("spark_response_cache_requests_total{result=\"coalesced\"} " + getCoalesced() + "\n");
+        out.write("spark_response_cache_requests_total{result=\"not_modified\"} " + getNotModified() + "\n");
+        out.write("# HELP spark_response_cache_evictions_total Entries evicted to stay under maxBytes.\n");
+        out.write("# TYPE spark_response_cache_evictions_total counter\n");
+        out.write("spark_response_cache_evictions_total " + getEvictions() + "\n");
+        out.write("# HELP spark_response_cache_entries Entries in the cache.\n");
+        out.write("# TYPE spark_response_cache_entries gauge\n");
+        out.write("spark_response_cache_entries " + getEntries() + "\n");
+        out.write("# HELP spark_response_cache_bytes Bytes of cached bodies, off-heap.\n");
+        out.write("# TYPE spark_response_cache_bytes gauge\n");
+        out.write("spark_response_cache_bytes " + getBytes() + "\n");
+    }
+
+    // a request suspended until the miss it's waiting for completes, or it gives up waiting
+    private static class Follower implements AsyncListener {
+        private final AsyncContext context;
+        private final AtomicBoolean resumed = new AtomicBoolean();
+        private volatile Entry entry;
+        private volatile Scheduler.Task timeout;
+
+        private Follower(AsyncContext context) {
+            this.context = context;
+        }
+
+        // with the leader's entry, or null if it wasn't cacheable or took too long
+        private void resume(Entry entry) {
+            if (resumed.compareAndSet(false, true)) {
+                Scheduler.Task timeout = this.timeout;
+                if (timeout != null) {
+                    timeout.cancel();
+                }
+                this.entry = entry;
+                context.dispatch();
+            }
+        }
+
+        @Override
+        public void onTimeout(AsyncEvent event) {
+        }
+
+        @Override
+        public void onComplete(AsyncEvent event) {
+        }
+
+        @Override
+        public void onError(AsyncEvent event) {
+            // the client is gone, nothing left to resume
+            resumed.set(true);
+        }
+
+        @Override
+        public void onStartAsync(AsyncEvent event) {
+        }
+    }
+
+    private static class Entry {
+        private final List<String[]> headers = new ArrayList<>();
+        private final ByteBuffer body;
+        private final String etag;
+        private final long expiresAt;
+
+        private Entry(HttpServletResponse response, byte[] content, long expiresAt) {
+            for (String name : response.getHeaderNames()) {
+                if (!isSkipped(name)) {
+                    for (String value : response.getHeaders(name)) {
+                        headers.add(new String[]{name, value});
+                    }
+                }
+            }
+            body = ByteBuffer.allocateDirect(content.length);
+            body.put(content).flip();
+            etag = etag(content);
+            this.expiresAt = expiresAt;
+        }
+
+        private long size() {
+            return body.capacity();
+        }
+
+        private static boolean isSkipped(String name) {
+            for (String skipped : SKIPPED_HEADERS) {
+                if (skipped.equalsIgnoreCase(name)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private static String etag(byte[] content) {
+            try {
+                byte[] digest = MessageDigest.getInstance("SHA-256").digest(content);
+                StringBuilder etag = new StringBuilder("\"");
+                for (int i = 0; i < 16; i++) {
+                    etag.append(Character.forDigit((digest[i] >> 4) & 0xf, 16)).append(Character.forDigit(digest[i] & 0xf, 16));
+                }
+                return etag.append('"').toString();
+            } catch (NoSuchAlgorithmException e) {
+                // every JDK has SHA-256
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    /**
+     * Keeps the body in memory instead of sending it, until it grows past maxBytes;
+     * from then on (or after passThrough()) everything goes to the real response.
+     */
+    private static class CapturingResponse extends HttpServletResponseWrapper {
+        private final int maxBytes;
+        private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        private ServletOutputStream out;
+        private PrintWriter writer;
+        private boolean passThrough;
+
+        private CapturingResponse(HttpServletResponse response, int maxBytes) {
+            super(response);
+            this.maxBytes = maxBytes;
+        }
+
+        private boolean isPassThrough() {
+            return passThrough;
+        }
+
+        private byte[] getBody() {
+            if (writer != null) {
+                writer.flush();
+            }
+            return buffer.toByteArray();
+        }
+
+        private void passThrough() throws IOException {
+            if (writer != null) {
+                writer.flush();
+            }
+            if (!passThrough) {
+                passThrough = true;
+                getResponse().getOutputStream().write(buffer.toByteArray());
+                buffer.reset();
+            }
+        }
+
+        @Override
+        public ServletOutputStream getOutputStream() {
+            if (out == null) {
+                out = new ServletOutputStream() {
+                    @Override
+                    public void write(int b) throws IOException {
+                        write(new byte[]{(byte) b}, 0, 1);
+                    }
+
+                    @Override
+                    public void write(byte[] b, int off, int len) throws IOException {
+                        if (!passThrough && buffer.size() + len > maxBytes) {
+                            passThrough();
+                        }
+                        if (passThrough) {
+                            getResponse().getOutputStream().write(b, off, len);
+                        } else {
+                            buffer.write(b, off, len);
+                        }
+                    }
+
+                    @Override
+                    public void flush() throws IOException {
+                        if (passThrough) {
+                            getResponse().getOutputStream().flush();
+                        }
+                    }
+
+                    @Override
+                    public void close() throws IOException {
+                        if (passThrough) {
+                            getResponse().getOutputStream().close();
+                        }
+                    }
+
+                    @Override
+                    public boolean isReady() {
+                        return true;
+                    }
+
+                    @Override
+                    public void setWriteListener(WriteListener writeListener) {
+                        throw new UnsupportedOperationException("async writes are not cached");
+                    }
+                };
+            }
+            return out;
+        }
+
+        @Override
+        public PrintWriter getWriter() throws IOException {
+            if (writer == null) {
+                writer = new PrintWriter(new OutputStreamWriter(getOutputStream(), getCharacterEncoding()));
+            }
+            return writer;
+        }
+
+        @Override
+        public void flushBuffer() throws IOException {
+            if (passThrough) {
+                super.flushBuffer();
+            }
+        }
+
+        @Override
+        public void resetBuffer() {
+            buffer.reset();
+            super.resetBuffer();
+        }
+
+        @Override
+        public void reset() {
+            buffer.reset();
+            super.reset();
+        }
+    }
+}
@@ -18,12 +18,72 @@
 package com.autoepm.sparktips.customjetty;
 
 /**
- * Various SSL-related options. You probably should not use what
- * is commented out, unless you know what you're doing.
+ * Various SSL-related options, grouped in named profiles.
+ * Cipher lists are in order of server preference: the connector enforces that order,
+ * so the cheapest strong suite the client supports is the one that gets picked.
+ * You probably should not use the legacy profile, unless you know what you're doing.
  **/
 public class SSLOptions {
 
-    public static final String[] PROTOCOLS = new String[]{
+    public enum Profile {
+        /**
+         * TLSv1.3 and TLSv1.2, AEAD suites with forward secrecy only. Any client from the last few years.
+         */
+        MODERN(MODERN_PROTOCOLS, MODERN_CIPHERS),
+        /**
+         * Like modern, but with DHE fallbacks for clients that can't do ECDHE.
+         */
+        INTERMEDIATE(MODERN_PROTOCOLS, INTERMEDIATE_CIPHERS),
+        /**
+         * What this project used to ship: TLSv1 onwards, including CBC, 3DES, DES and KRB5 suites.
+         * Slow and weak, only here for ancient clients.
+         */
+        LEGACY(LEGACY_PROTOCOLS, LEGACY_CIPHERS);
+
+        private final String[] protocols;
+        private final String[] ciphers;
+
+        Profile(String[] protocols, String[] ciphers) {
+            this.protocols = protocols;
+            this.ciphers = ciphers;
+        }
+
+        public String[] protocols() {
+            return protocols.clone();
+        }
+
+        public String[] ciphers() {
+            return ciphers.clone();
+        }
+    }
+
+    public static final String[] MODERN_PROTOCOLS = new String[]{
+            "TLSv1.3",
+            "TLSv1.2",
+    };
+
+    public static final String[] MODERN_CIPHERS = new String[]{
+            // TLSv1.3, these are AEAD by definition
+            "TLS_AES_128_GCM_SHA256",
+            "TLS_CHACHA20_POLY1305_SHA256",
+            "TLS_AES_256_GCM_SHA384",
+            // TLSv1.2, ECDSA certificates are much cheaper to sign with than RSA ones
+            "TLS_ECDHE_ECDSA_WITH_AES_128_GCM_SHA256",
+            "TLS_ECDHE_RSA_WITH_AES_128_GCM_SHA256",
+            // chacha is faster than AES on hardware without AES-NI (e.g. most phones)
+            "TLS_ECDHE_ECDSA_WITH_CHACHA20_POLY1305_SHA256",
+            "TLS_ECDHE_RSA_WITH_CHACHA20_POLY1305_SHA256",
+            "TLS_ECDHE_ECDSA_WITH_AES_256_GCM_SHA384",
+            "TLS_ECDHE_RSA_WITH_AES_256_GCM_SHA384",
+    };
+
+    public static final String[] INTERMEDIATE_CIPHERS = concat(MODERN_CIPHERS, new String[]{
+            "TLS_DHE_RSA_WITH_AES_128_GCM_SHA256",
+            "TLS_DHE_RSA_WITH_CHACHA20_POLY1305_SHA256",
+            "TLS_DHE_RSA_WITH_AES_256_GCM_SHA384",
+    });
+
+    public static final String[] LEGACY_PROTOCOLS = new String[]{
             // "SSLv2",
             // "SSLv2Hello", // java 6 clients might want this
             // "SSLV3",
@@ -33,8 +93,7 @@ public class SSLOptions {
             "TLSv1.3",
     };
 
-
-    public static final String[] CIPHERS = new String[]{
+    public static final String[] LEGACY_CIPHERS = new String[]{
             //"SSL_DHE_DSS_EXPORT_WITH_DES40_CBC_SHA",
             "SSL_DHE_DSS_WITH_3DES_EDE_CBC_SHA",
             "SSL_DHE_DSS_WITH_DES_CBC_SHA",
@@ -99,5 +158,24 @@ public class SSLOptions {
             //"TLS_RSA_WITH_NULL_SHA256",
     };
 
+    /**
+     * The old protocol list, unchanged. The connector used to pass it to setExcludeProtocols().
+     * @deprecated use a Profile, see ConnectorOptions.withTlsProfile()
+     */
+    @Deprecated
+    public static final String[] PROTOCOLS = LEGACY_PROTOCOLS.clone();
+    /**
+     * The old cipher list, unchanged. The connector used to pass it to setIncludeCipherSuites().
+     * @deprecated use a Profile, see ConnectorOptions.withTlsProfile()
+     */
+    @Deprecated
+    public static final String[] CIPHERS = LEGACY_CIPHERS.clone();
+
+    private static String[] concat(String[] first, String[] second) {
+        String[] result = new String[first.length + second.length];
+        System.arraycopy(first, 0, result, 0, first.length);
+        System.arraycopy(second, 0, result, first.length, second.length);
+        return result;
+    }
 
 }
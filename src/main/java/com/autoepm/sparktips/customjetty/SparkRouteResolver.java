@@ -0,0 +1,112 @@
+/*
+ * Copyright 2019 Giacomo Lacava
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package com.autoepm.sparktips.customjetty;
+
+import spark.route.HttpMethod;
+import spark.route.Routes;
+import spark.routematch.RouteMatch;
+
+import javax.servlet.http.HttpServletRequest;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Labels requests with the Spark route they match, e.g. "GET /users/:id".
+ * Matching walks the whole route table, so results are cached by method and path,
+ * up to a limit so that paths full of ids can't eat the heap. Paths that match nothing (static files,
+ * scanners...) are cached too, but only for a few seconds, as routes can still be added after startup.
+ **/
+public class SparkRouteResolver implements RequestMetricsHandler.RouteResolver {
+
+    static final String UNMATCHED = "unmatched";
+    private static final long MISSES_TTL_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+    private static final Map<String, HttpMethod> METHODS = new HashMap<>();
+
+    static {
+        for (HttpMethod method : HttpMethod.values()) {
+            METHODS.put(method.name().toUpperCase(), method);
+        }
+    }
+
+    private final Routes routes;
+    private final RequestMetrics metrics;
+    private final int maxCachedPaths;
+    private final Map<HttpMethod, ConcurrentHashMap<String, RequestMetrics.Route>> cache = new HashMap<>();
+    private final Map<HttpMethod, Set<String>> misses = new HashMap<>();
+    private final RequestMetrics.Route unmatched;
+    private volatile long missesSince = System.nanoTime();
+
+    public SparkRouteResolver(Routes routes, RequestMetrics metrics) {
+        this(routes, metrics, 10000);
+    }
+
+    public SparkRouteResolver(Routes routes, RequestMetrics metrics, int maxCachedPaths) {
+        this.routes = routes;
+        this.metrics = metrics;
+        this.maxCachedPaths = maxCachedPaths;
+        for (HttpMethod method : HttpMethod.values()) {
+            cache.put(method, new ConcurrentHashMap<>());
+            misses.put(method, ConcurrentHashMap.newKeySet());
+        }
+        this.unmatched = metrics.route(UNMATCHED);
+    }
+
+    @Override
+    public RequestMetrics.Route resolve(HttpServletRequest request) {
+        HttpMethod method = METHODS.get(request.getMethod());
+        if (method == null) {
+            return unmatched;
+        }
+        String path = request.getRequestURI();
+        ConcurrentHashMap<String, RequestMetrics.Route> byPath = cache.get(method);
+        RequestMetrics.Route route = byPath.get(path);
+        if (route == null) {
+            Set<String> missed = misses.get(method);
+            if (missed.contains(path)) {
+                if (System.nanoTime() - missesSince < MISSES_TTL_NANOS) {
+                    return unmatched;
+                }
+                // give routes added since then a chance
+                clearMisses();
+            }
+            RouteMatch match = routes.find(method, path, request.getHeader("Accept"));
+            if (match == null) {
+                if (missed.size() < maxCachedPaths) {
+                    missed.add(path);
+                }
+                return unmatched;
+            }
+            route = metrics.route(request.getMethod() + " " + match.getMatchUri());
+            if (byPath.size() < maxCachedPaths) {
+                byPath.put(path, route);
+            }
+        }
+        return route;
+    }
+
+    private void clearMisses() {
+        missesSince = System.nanoTime();
+        for (Set<String> missed : misses.values()) {
+            missed.clear();
+        }
+    }
+}
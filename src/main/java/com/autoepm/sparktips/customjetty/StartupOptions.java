@@ -0,0 +1,87 @@
+/*
+ * Copyright 2019 Giacomo Lacava
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package com.autoepm.sparktips.customjetty;
+
+/**
+ * How MyCustomEmbeddedServer.ignite() gets to serving. Startup is always timed, phase by phase, and logged;
+ * withFastStartup() cuts the time down when instances have to come up quickly (autoscaling):
+ * - with port 0, the real connector binds an ephemeral port and that's the port reported to Spark,
+ * rather than binding a throwaway socket first just to find a free port;
+ * - the thread pool and the session id manager are started on another thread,
+ * while the websocket context and the handler chain are being built.
+ **/
+public class StartupOptions {
+
+    private boolean fastStartup = false;
+    private int prewarmBuffers = 0;
+    private String readinessPath = null;
+    private ReadinessListener readinessListener = null;
+
+    public boolean isFastStartup() {
+        return fastStartup;
+    }
+
+    public int getPrewarmBuffers() {
+        return prewarmBuffers;
+    }
+
+    public String getReadinessPath() {
+        return readinessPath;
+    }
+
+    public ReadinessListener getReadinessListener() {
+        return readinessListener;
+    }
+
+    public StartupOptions withFastStartup(boolean fastStartup) {
+        this.fastStartup = fastStartup;
+        return this;
+    }
+
+    /**
+     * With fast startup, how many buffers of each size a connection asks for (request, response header
+     * and response body) to allocate into the buffer pools up front, roughly the connections expected at once.
+     * It happens in the background after the server can start, so the first burst of requests doesn't pay
+     * for allocating them; it does take CPU away from startup itself, so it only helps with a spare core.
+     */
+    public StartupOptions withPrewarmBuffers(int prewarmBuffers) {
+        this.prewarmBuffers = prewarmBuffers;
+        return this;
+    }
+
+    /**
+     * GETs to this path answer 200 once the server has fully started, and 503 again as soon as it starts
+     * stopping, for load balancer or orchestrator health checks. They don't go through Spark.
+     */
+    public StartupOptions withReadinessPath(String readinessPath) {
+        this.readinessPath = readinessPath;
+        return this;
+    }
+
+    /**
+     * Called once the server is started and serving, e.g. to register the instance with service discovery.
+     */
+    public StartupOptions withReadinessListener(ReadinessListener readinessListener) {
+        this.readinessListener = readinessListener;
+        return this;
+    }
+
+    public interface ReadinessListener {
+        void ready(int port, StartupTimings timings);
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright 2019 Giacomo Lacava
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package com.autoepm.sparktips.customjetty;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How long each phase of MyCustomEmbeddedServer.ignite() took, in the order they happened.
+ **/
+public class StartupTimings {
+
+    private final long start = System.nanoTime();
+    private long last = start;
+    private final Map<String, Long> phases = new LinkedHashMap<>();
+
+    /**
+     * Ends the current phase, i.e. everything since the previous call (or since this was created), under name.
+     */
+    public synchronized void phase(String name) {
+        long now = System.nanoTime();
+        phases.merge(name, now - last, Long::sum);
+        last = now;
+    }
+
+    /**
+     * Phase name to milliseconds.
+     */
+    public synchronized Map<String, Long> getPhases() {
+        Map<String, Long> millis = new LinkedHashMap<>();
+        phases.forEach((name, nanos) -> millis.put(name, TimeUnit.NANOSECONDS.toMillis(nanos)));
+        return Collections.unmodifiableMap(millis);
+    }
+
+    public synchronized long getTotalMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(last - start);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        getPhases().forEach((name, millis) -> builder.append(name).append(' ').append(millis).append("ms, "));
+        return builder.append("total ").append(getTotalMillis()).append("ms").toString();
+    }
+}
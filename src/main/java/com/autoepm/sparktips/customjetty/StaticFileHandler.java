@@ -0,0 +1,211 @@
+/*
+ * Copyright 2019 Giacomo Lacava
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package com.autoepm.sparktips.customjetty;
+
+import org.eclipse.jetty.server.CachedContentFactory;
+import org.eclipse.jetty.http.HttpContent;
+import org.eclipse.jetty.server.Handler;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.ResourceService;
+import org.eclipse.jetty.server.handler.ResourceHandler;
+import org.eclipse.jetty.util.annotation.ManagedAttribute;
+import org.eclipse.jetty.util.annotation.ManagedObject;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serves a static files folder with Jetty's own resource machinery instead of spark's StaticFilesConfiguration,
+ * which copies every file through the servlet output stream on every request.
+ * File metadata and content are cached (content memory-mapped by default, so it lives in the page cache
+ * rather than on the heap) and written to the socket straight from those buffers.
+ * Range requests, If-Modified-Since and If-None-Match (with ETags) are handled too.
+ * Anything that isn't a file in the folder goes on to spark as usual; those paths are remembered for a
+ * few seconds, so spark routes don't pay for a trip to the filesystem on every request.
+ * Use it instead of spark's staticFiles.externalLocation(), not as well.
+ **/
+@ManagedObject("Static files")
+public class StaticFileHandler extends ResourceHandler {
+    private static final long MISSES_TTL_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+    private boolean memoryMapped = true;
+    private int maxCachedFiles = 2048;
+    private int maxCacheSize = 256 * 1024 * 1024;
+    private int maxCachedFileSize = 128 * 1024 * 1024;
+    private int maxCachedMisses = 10000;
+    private final Set<String> misses = ConcurrentHashMap.newKeySet();
+    private volatile long missesSince = System.nanoTime();
+    private final ResourceService resourceService;
+    private volatile CachedContentFactory cache;
+
+    public StaticFileHandler(String directory) {
+        this(directory, new ResourceService() {
+            @Override
+            protected void notFound(HttpServletRequest request, HttpServletResponse response) {
+                // let spark have a go
+            }
+        });
+    }
+
+    private StaticFileHandler(String directory, ResourceService resourceService) {
+        super(resourceService);
+        this.resourceService = resourceService;
+        setResourceBase(directory);
+        setGzipEquivalentFileExtensions(new ArrayList<>(Collections.singletonList(".svgz")));
+        setDirAllowed(false);
+        setDirectoriesListed(false);
+        setEtags(true);
+        setAcceptRanges(true);
+    }
+
+    /**
+     * Map cached files into memory (the default) rather than reading them into direct buffers.
+     * Mapped files don't count against the heap or the direct memory limit, and any size can be cached.
+     */
+    public StaticFileHandler withMemoryMapped(boolean memoryMapped) {
+        this.memoryMapped = memoryMapped;
+        return this;
+    }
+
+    /**
+     * Bounds for the content cache: number of files, total bytes, and the biggest file worth keeping
+     * (the last two only apply to files that are read, not mapped).
+     */
+    public StaticFileHandler withCacheLimits(int maxCachedFiles, int maxCacheSize, int maxCachedFileSize) {
+        this.maxCachedFiles = maxCachedFiles;
+        this.maxCacheSize = maxCacheSize;
+        this.maxCachedFileSize = maxCachedFileSize;
+        return this;
+    }
+
+    /**
+     * How many paths that aren't files (spark routes, mostly) to remember, default 10000.
+     */
+    public StaticFileHandler withMaxCachedMisses(int maxCachedMisses) {
+        this.maxCachedMisses = maxCachedMisses;
+        return this;
+    }
+
+    /**
+     * Cache-Control header for everything served from here, e.g. "public, max-age=3600".
+     */
+    public StaticFileHandler withCacheControl(String cacheControl) {
+        setCacheControl(cacheControl);
+        return this;
+    }
+
+    @Override
+    public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response) throws IOException, ServletException {
+        if (!isFile(target)) {
+            Handler next = getHandler();
+            if (next != null) {
+                next.handle(target, baseRequest, request, response);
+            }
+            return;
+        }
+        super.handle(target, baseRequest, request, response);
+    }
+
+    private boolean isFile(String target) throws IOException {
+        if (misses.contains(target)) {
+            if (System.nanoTime() - missesSince < MISSES_TTL_NANOS) {
+                return false;
+            }
+            // give files deployed since then a chance
+            clearMisses();
+        }
+        // files already in the content cache don't touch the filesystem again here
+        HttpContent content = cache.getContent(target, maxCachedFileSize);
+        try {
+            // ResourceHandler answers directories with a 403, which would hide spark routes like "/"
+            if (content != null && (!content.getResource().isDirectory() || getWelcomeFile(target) != null)) {
+                return true;
+            }
+        } finally {
+            if (content != null) {
+                content.release();
+            }
+        }
+        if (misses.size() < maxCachedMisses) {
+            misses.add(target);
+        }
+        return false;
+    }
+
+    private void clearMisses() {
+        missesSince = System.nanoTime();
+        misses.clear();
+    }
+
+    @Override
+    public void doStart() throws Exception {
+        super.doStart();
+        // ResourceHandler reads the file again on every request, swap in the factory DefaultServlet uses
+        CachedContentFactory cachedContent = new CachedContentFactory(null, this, getMimeTypes(), memoryMapped,
+                isEtags(), getPrecompressedFormats());
+        cachedContent.setMaxCachedFiles(maxCachedFiles);
+        cachedContent.setMaxCacheSize(maxCacheSize);
+        cachedContent.setMaxCachedFileSize(maxCachedFileSize);
+        resourceService.setContentFactory(cachedContent);
+        cache = cachedContent;
+    }
+
+    @Override
+    public void doStop() throws Exception {
+        CachedContentFactory current = cache;
+        if (current != null) {
+            current.flushCache();
+        }
+        super.doStop();
+    }
+
+    /**
+     * Forget cached content and misses, e.g. after a deploy added or replaced files.
+     */
+    public void flushCache() {
+        CachedContentFactory current = cache;
+        if (current != null) {
+            current.flushCache();
+        }
+        clearMisses();
+    }
+
+    @ManagedAttribute("files in the content cache")
+    public int getCachedFiles() {
+        CachedContentFactory current = cache;
+        return current == null ? 0 : current.getCachedFiles();
+    }
+
+    @ManagedAttribute("paths remembered as not being files")
+    public int getCachedMisses() {
+        return misses.size();
+    }
+
+    @ManagedAttribute("bytes in the content cache")
+    public int getCachedSize() {
+        CachedContentFactory current = cache;
+        return current == null ? 0 : current.getCachedSize();
+    }
+}
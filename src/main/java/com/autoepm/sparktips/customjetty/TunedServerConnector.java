@@ -0,0 +1,154 @@
+/*
+ * Copyright 2019 Giacomo Lacava
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package com.autoepm.sparktips.customjetty;
+
+import org.eclipse.jetty.io.ByteBufferPool;
+import org.eclipse.jetty.server.ConnectionFactory;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketOption;
+import java.nio.channels.NetworkChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.util.concurrent.Future;
+
+/**
+ * ServerConnector with the socket options Jetty 9.4 doesn't expose: SO_REUSEPORT on the listening socket,
+ * so several connectors can share a port and let the kernel spread new connections between them,
+ * and a way to turn TCP_NODELAY off.
+ * It also really stops accepting on a graceful shutdown: Jetty only marks the connector as shut down
+ * (so responses go out with Connection: close) and keeps taking new connections until it's stopped,
+ * here the listening socket is closed straight away so they get refused and can go to another instance.
+ **/
+public class TunedServerConnector extends ServerConnector {
+    private final static Logger logger = LoggerFactory.getLogger(TunedServerConnector.class);
+
+    private boolean reusePort = false;
+    private boolean reusePortRequired = false;
+    private boolean tcpNoDelay = true;
+
+    public TunedServerConnector(Server server, ByteBufferPool bufferPool, int acceptors, int selectors, ConnectionFactory... factories) {
+        super(server, null, null, bufferPool, acceptors, selectors, factories);
+    }
+
+    /**
+     * Set SO_REUSEPORT before binding. If required is true (sharded connectors, which can't bind
+     * without it) the connector fails to open where the option isn't available, otherwise it just warns.
+     */
+    public void setReusePort(boolean reusePort, boolean required) {
+        this.reusePort = reusePort;
+        this.reusePortRequired = required;
+    }
+
+    public boolean isReusePort() {
+        return reusePort;
+    }
+
+    public void setTcpNoDelay(boolean tcpNoDelay) {
+        this.tcpNoDelay = tcpNoDelay;
+    }
+
+    public boolean isTcpNoDelay() {
+        return tcpNoDelay;
+    }
+
+    @Override
+    protected ServerSocketChannel openAcceptChannel() throws IOException {
+        if (!reusePort || isInheritChannel()) {
+            return super.openAcceptChannel();
+        }
+        ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        try {
+            SocketOption<Boolean> option = reusePortOption(serverChannel);
+            if (option != null) {
+                serverChannel.setOption(option, true);
+            } else if (reusePortRequired) {
+                throw new IOException("SO_REUSEPORT is not available here (it needs java 9+ on Linux or BSD), can't share port " + getPort());
+            } else {
+                logger.warn("SO_REUSEPORT is not available here, ignoring it for port {}", getPort());
+            }
+            InetSocketAddress bindAddress = getHost() == null ? new InetSocketAddress(getPort()) : new InetSocketAddress(getHost(), getPort());
+            serverChannel.socket().setReuseAddress(getReuseAddress());
+            serverChannel.socket().bind(bindAddress, getAcceptQueueSize());
+            return serverChannel;
+        } catch (IOException e) {
+            serverChannel.close();
+            throw e;
+        }
+    }
+
+    // StandardSocketOptions.SO_REUSEPORT only exists from java 9, so look it up by name
+    @SuppressWarnings("unchecked")
+    private static SocketOption<Boolean> reusePortOption(NetworkChannel channel) {
+        for (SocketOption<?> option : channel.supportedOptions()) {
+            if ("SO_REUSEPORT".equals(option.name())) {
+                return (SocketOption<Boolean>) option;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    protected void configure(Socket socket) {
+        try {
+            socket.setTcpNoDelay(tcpNoDelay);
+        } catch (SocketException e) {
+            logger.debug("could not set TCP_NODELAY", e);
+        }
+    }
+
+    @Override
+    protected void doStart() throws Exception {
+        // a VirtualThreadPool needs to know which tasks are the acceptors and selectors
+        VirtualThreadPool.startPinned(() -> {
+            super.doStart();
+            return null;
+        });
+    }
+
+    @Override
+    public Future<Void> shutdown() {
+        Future<Void> shutdown = super.shutdown();
+        // park the acceptors before pulling the socket from under them, or they'd spin on a closed channel
+        setAccepting(false);
+        close();
+        return shutdown;
+    }
+
+    @Override
+    public void setAccepting(boolean accepting) {
+        // connection and accept rate limits keep toggling this, they mustn't wake the acceptors up again
+        super.setAccepting(accepting && !isShutdown());
+    }
+
+    @Override
+    protected boolean handleAcceptFailure(Throwable ex) {
+        if (isShutdown()) {
+            // the acceptor was blocked in accept() when we closed the socket
+            logger.debug("acceptor stopped by shutdown", ex);
+            return true;
+        }
+        return super.handleAcceptFailure(ex);
+    }
+}
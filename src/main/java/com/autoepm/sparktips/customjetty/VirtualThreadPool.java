@@ -0,0 +1,275 @@
+/*
+ * Copyright 2019 Giacomo Lacava
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package com.autoepm.sparktips.customjetty;
+
+import org.eclipse.jetty.util.component.ContainerLifeCycle;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.eclipse.jetty.util.thread.ThreadPool;
+import org.eclipse.jetty.util.thread.ThreadPoolBudget;
+import org.eclipse.jetty.util.thread.strategy.EatWhatYouKill;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * ThreadPool that runs request handling on virtual threads (java 21+).
+ * Jetty's acceptors and selectors sit in a blocking accept()/select() for their whole life,
+ * so they stay on a small pool of platform threads; everything else gets its own virtual thread.
+ * Connectors lease the threads they need when they start (Jetty's ThreadPoolBudget), and the platform
+ * pool grows to fit, however many acceptors, selectors and shards there are.
+ * Telling those tasks apart needs the connectors to start through startPinned(), as TunedServerConnector does.
+ * Virtual threads are looked up reflectively, so this still compiles for java 8:
+ * check isSupported() before using it.
+ **/
+public class VirtualThreadPool extends ContainerLifeCycle implements ThreadPool.SizedThreadPool {
+    private final static Logger logger = LoggerFactory.getLogger(VirtualThreadPool.class);
+
+    // on top of the leased ones, for selectors handing production over to another thread (EatWhatYouKill)
+    private static final int SPARE_PLATFORM_THREADS = 2;
+    private static final ThreadLocal<Boolean> PINNED = new ThreadLocal<>();
+
+    private final QueuedThreadPool platformThreads;
+    private final AtomicInteger activeVirtualThreads = new AtomicInteger();
+    private final AtomicInteger leasedThreads = new AtomicInteger();
+    private final ThreadPoolBudget budget = new Budget();
+    private final String name;
+    private volatile ExecutorService virtualThreads;
+
+    public VirtualThreadPool() {
+        this(Math.max(8, Runtime.getRuntime().availableProcessors()));
+    }
+
+    /**
+     * platformThreadCount is where the platform pool starts, it grows if the connectors lease more.
+     */
+    public VirtualThreadPool(int platformThreadCount) {
+        this.name = "vt-" + hashCode();
+        this.platformThreads = new QueuedThreadPool(platformThreadCount, platformThreadCount);
+        this.platformThreads.setName(name + "-platform");
+        addBean(this.platformThreads);
+    }
+
+    public static boolean isSupported() {
+        try {
+            Thread.class.getMethod("ofVirtual");
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    @Override
+    protected void doStart() throws Exception {
+        virtualThreads = newVirtualThreadExecutor(name + "-");
+        super.doStart();
+    }
+
+    @Override
+    protected void doStop() throws Exception {
+        super.doStop();
+        ExecutorService executor = virtualThreads;
+        if (executor != null) {
+            executor.shutdown();
+        }
+    }
+
+    @Override
+    public void execute(Runnable job) {
+        if (isPlatformTask(job)) {
+            platformThreads.execute(job);
+            return;
+        }
+        ExecutorService executor = virtualThreads;
+        if (executor == null) {
+            throw new RejectedExecutionException(name + " is not started");
+        }
+        activeVirtualThreads.incrementAndGet();
+        try {
+            executor.execute(() -> {
+                try {
+                    job.run();
+                } finally {
+                    activeVirtualThreads.decrementAndGet();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            activeVirtualThreads.decrementAndGet();
+            throw e;
+        }
+    }
+
+    @Override
+    public void join() throws InterruptedException {
+        platformThreads.join();
+    }
+
+    /**
+     * Platform threads plus virtual threads that are running a job right now.
+     */
+    @Override
+    public int getThreads() {
+        return platformThreads.getThreads() + activeVirtualThreads.get();
+    }
+
+    /**
+     * Only platform threads can be idle, virtual threads go away as soon as their job is done.
+     */
+    @Override
+    public int getIdleThreads() {
+        return platformThreads.getIdleThreads();
+    }
+
+    /**
+     * Never: there's a virtual thread for every job, and the platform threads are all pinned by design.
+     * Whatever the virtual threads end up waiting on (a database pool, say) is for admission control
+     * or bulkheads to limit, not for Jetty's low resources mode.
+     */
+    @Override
+    public boolean isLowOnThreads() {
+        return false;
+    }
+
+    /**
+     * Platform threads, the min and max below are all about those.
+     */
+    @Override
+    public int getMinThreads() {
+        return platformThreads.getMinThreads();
+    }
+
+    @Override
+    public int getMaxThreads() {
+        return platformThreads.getMaxThreads();
+    }
+
+    @Override
+    public void setMinThreads(int threads) {
+        platformThreads.setMinThreads(threads);
+    }
+
+    @Override
+    public void setMaxThreads(int threads) {
+        platformThreads.setMaxThreads(threads);
+    }
+
+    @Override
+    public ThreadPoolBudget getThreadPoolBudget() {
+        return budget;
+    }
+
+    /**
+     * Platform threads leased by connectors for their acceptors and selectors.
+     */
+    public int getLeasedThreads() {
+        return leasedThreads.get();
+    }
+
+    public int getActiveVirtualThreads() {
+        return activeVirtualThreads.get();
+    }
+
+    public QueuedThreadPool getPlatformThreads() {
+        return platformThreads;
+    }
+
+    /**
+     * Runs start, a connector's doStart(), so that whatever it executes from this thread meanwhile gets
+     * a platform thread: that's its acceptor loops and selector producers, which Jetty 9.4 doesn't tag.
+     */
+    public static void startPinned(Callable<Void> start) throws Exception {
+        Boolean outer = PINNED.get();
+        PINNED.set(Boolean.TRUE);
+        try {
+            start.call();
+        } finally {
+            PINNED.set(outer);
+        }
+    }
+
+    /**
+     * Long-lived Jetty infrastructure: connector acceptor loops and selector producers (started through
+     * startPinned()), and selectors handing production over to another thread.
+     */
+    protected boolean isPlatformTask(Runnable job) {
+        return job instanceof EatWhatYouKill || Boolean.TRUE.equals(PINNED.get());
+    }
+
+    // grows the platform pool rather than refusing, every lease is a thread blocked for good
+    private void ensurePlatformThreads(int threads) {
+        synchronized (platformThreads) {
+            if (platformThreads.getMaxThreads() < threads) {
+                logger.info("{} platform threads for {} acceptors and selectors", threads, leasedThreads.get());
+                platformThreads.setMaxThreads(threads);
+                platformThreads.setMinThreads(threads);
+            }
+        }
+    }
+
+    private class Budget extends ThreadPoolBudget {
+        private Budget() {
+            super(VirtualThreadPool.this);
+        }
+
+        @Override
+        public Lease leaseTo(Object leasee, int threads) {
+            ensurePlatformThreads(leasedThreads.addAndGet(threads) + SPARE_PLATFORM_THREADS);
+            Lease lease;
+            try {
+                lease = super.leaseTo(leasee, threads);
+            } catch (IllegalStateException e) {
+                leasedThreads.addAndGet(-threads);
+                throw e;
+            }
+            return new Lease() {
+                @Override
+                public int getThreads() {
+                    return threads;
+                }
+
+                @Override
+                public void close() throws IOException {
+                    leasedThreads.addAndGet(-threads);
+                    lease.close();
+                }
+            };
+        }
+    }
+
+    private static ExecutorService newVirtualThreadExecutor(String prefix) {
+        try {
+            // Thread.ofVirtual().name(prefix, 0).factory(), then Executors.newThreadPerTaskExecutor(factory)
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, prefix, 0L);
+            ThreadFactory factory = (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+            Method newExecutor = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+            return (ExecutorService) newExecutor.invoke(null, factory);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            logger.error("Virtual threads are not available on java {}", System.getProperty("java.version"));
+            throw new UnsupportedOperationException("Virtual threads need java 21 or later", e);
+        }
+    }
+}
@@ -0,0 +1,389 @@
+/*
+ * Copyright 2019 Giacomo Lacava
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package com.autoepm.sparktips.customjetty;
+
+import org.eclipse.jetty.util.annotation.ManagedAttribute;
+import org.eclipse.jetty.util.annotation.ManagedObject;
+import org.eclipse.jetty.websocket.api.BatchMode;
+import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.WriteCallback;
+import org.eclipse.jetty.websocket.api.extensions.OutgoingFrames;
+import org.eclipse.jetty.websocket.common.WebSocketFrame;
+import org.eclipse.jetty.websocket.common.WebSocketSession;
+import org.eclipse.jetty.websocket.common.frames.BinaryFrame;
+import org.eclipse.jetty.websocket.common.frames.TextFrame;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Topic based fan-out for websocket sessions. subscribe() sessions to a topic (usually from
+ * the @OnWebSocketConnect of your Spark websocket class) and publish() to it from anywhere:
+ * - the message is encoded once and every session's frame points at the same bytes;
+ * - sends never block the publisher: each session has its own outbound queue, and whatever piles up
+ * in it while a write is in flight goes out in the next write, batched together;
+ * - a session whose queue goes over the limit, or whose oldest message is too old, is a slow consumer
+ * and gets disconnected, rather than holding memory (and everyone's lag) hostage.
+ * Sessions are forgotten when they close, there's no need to unsubscribe them yourself.
+ * Register it with MyCustomEmbeddedServerFactory.withWebSocketBroadcaster(), which also wires up close tracking.
+ **/
+@ManagedObject("Websocket broadcaster")
+public class WebSocketBroadcaster implements WebSocketSession.Listener, RequestMetrics.Exporter {
+    private final static Logger logger = LoggerFactory.getLogger(WebSocketBroadcaster.class);
+
+    private static final int MAX_BATCH = 64;
+
+    private final ConcurrentHashMap<String, Set<Outbound>> topics = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Session, Outbound> sessions = new ConcurrentHashMap<>();
+    private int maxQueuedPerSession = 1024;
+    private long maxLagMillis = 30000;
+
+    private final LatencyHistogram deliveryLag = new LatencyHistogram();
+    private final AtomicLong queued = new AtomicLong();
+    private final AtomicLong published = new AtomicLong();
+    private final AtomicLong delivered = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong evicted = new AtomicLong();
+
+    /**
+     * Messages a session may have waiting before it's treated as a slow consumer.
+     */
+    public WebSocketBroadcaster withMaxQueuedPerSession(int maxQueuedPerSession) {
+        this.maxQueuedPerSession = maxQueuedPerSession;
+        return this;
+    }
+
+    /**
+     * How old the oldest waiting message of a session may get before it's treated as a slow consumer.
+     * 0 means no limit.
+     */
+    public WebSocketBroadcaster withMaxLagMillis(long maxLagMillis) {
+        this.maxLagMillis = maxLagMillis;
+        return this;
+    }
+
+    public void subscribe(String topic, Session session) {
+        Outbound outbound = sessions.computeIfAbsent(session, Outbound::new);
+        outbound.topics.add(topic);
+        topics.computeIfAbsent(topic, t -> ConcurrentHashMap.newKeySet()).add(outbound);
+        if (!session.isOpen()) {
+            // closed while we were subscribing it, onClosed may have already run
+            remove(session);
+        }
+    }
+
+    public void unsubscribe(String topic, Session session) {
+        Outbound outbound = sessions.get(session);
+        Set<Outbound> subscribers = topics.get(topic);
+        if (outbound != null && subscribers != null) {
+            subscribers.remove(outbound);
+            outbound.topics.remove(topic);
+        }
+    }
+
+    public int getSubscribers(String topic) {
+        Set<Outbound> subscribers = topics.get(topic);
+        return subscribers == null ? 0 : subscribers.size();
+    }
+
+    /**
+     * Sends text to every session subscribed to topic. Returns how many sessions it was queued for.
+     */
+    public int publish(String topic, String text) {
+        return publish(topic, new Message(ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8)), true));
+    }
+
+    /**
+     * Sends binary data to every session subscribed to topic. The buffer must not be changed afterwards,
+     * sessions read from it until their send completes.
+     */
+    public int publish(String topic, ByteBuffer data) {
+        return publish(topic, new Message(data, false));
+    }
+
+    private int publish(String topic, Message message) {
+        published.incrementAndGet();
+        Set<Outbound> subscribers = topics.get(topic);
+        if (subscribers == null) {
+            return 0;
+        }
+        int count = 0;
+        for (Outbound outbound : subscribers) {
+            if (outbound.enqueue(message)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public void onOpened(WebSocketSession session) {
+    }
+
+    @Override
+    public void onClosed(WebSocketSession session) {
+        remove(session);
+    }
+
+    private void remove(Session session) {
+        Outbound outbound = sessions.remove(session);
+        if (outbound == null) {
+            return;
+        }
+        for (String topic : outbound.topics) {
+            Set<Outbound> subscribers = topics.get(topic);
+            if (subscribers != null) {
+                subscribers.remove(outbound);
+            }
+        }
+        // whatever is still waiting is never going out
+        Message message;
+        while ((message = outbound.queue.poll()) != null) {
+            outbound.depth.decrementAndGet();
+            queued.decrementAndGet();
+        }
+    }
+
+    private void evict(Outbound outbound, String reason) {
+        if (!outbound.evicted.compareAndSet(false, true)) {
+            return;
+        }
+        evicted.incrementAndGet();
+        logger.info("disconnecting slow websocket consumer {}: {}", outbound.session.getRemoteAddress(), reason);
+        try {
+            // not close(): the close frame would only queue up behind everything the client isn't reading
+            outbound.session.disconnect();
+        } catch (IOException e) {
+            logger.debug("disconnect failed", e);
+        }
+        remove(outbound.session);
+    }
+
+    @ManagedAttribute("sessions subscribed to at least one topic")
+    public int getSessions() {
+        return sessions.size();
+    }
+
+    @ManagedAttribute("messages waiting to be sent, over all sessions")
+    public long getQueued() {
+        return queued.get();
+    }
+
+    @ManagedAttribute("messages published")
+    public long getPublished() {
+        return published.get();
+    }
+
+    @ManagedAttribute("messages delivered, one per session")
+    public long getDelivered() {
+        return delivered.get();
+    }
+
+    @ManagedAttribute("sends that failed")
+    public long getFailed() {
+        return failed.get();
+    }
+
+    @ManagedAttribute("slow consumers disconnected")
+    public long getEvicted() {
+        return evicted.get();
+    }
+
+    @ManagedAttribute("99th percentile time from publish to the message being written, in microseconds")
+    public long getDeliveryLag99Micros() {
+        return deliveryLag.snapshot().getPercentileMicros(99);
+    }
+
+    public LatencyHistogram.Snapshot getDeliveryLag() {
+        return deliveryLag.snapshot();
+    }
+
+    @Override
+    public void writePrometheus(Writer out) throws IOException {
+        LatencyHistogram.Snapshot lag = deliveryLag.snapshot();
+        out.write("# HELP spark_websocket_delivery_lag_seconds Time from publish to the message being written.\n");
+        out.write("# TYPE spark_websocket_delivery_lag_seconds summary\n");
+        for (double quantile : new double[]{0.5, 0.9, 0.99, 0.999}) {
+            out.write("spark_websocket_delivery_lag_seconds{quantile=\"" + quantile + "\"} "
+                    + lag.getPercentileMicros(quantile * 100) / 1_000_000.0 + "\n");
+        }
+        out.write("spark_websocket_delivery_lag_seconds_sum " + lag.getTotalMicros() / 1_000_000.0 + "\n");
+        out.write("spark_websocket_delivery_lag_seconds_count " + lag.getCount() + "\n");
+        out.write("# HELP spark_websocket_queued Messages waiting to be sent, over all sessions.\n");
+        out.write("# TYPE spark_websocket_queued gauge\n");
+        out.write("spark_websocket_queued " + getQueued() + "\n");
+        out.write("# HELP spark_websocket_sessions Sessions subscribed to at least one topic.\n");
+        out.write("# TYPE spark_websocket_sessions gauge\n");
+        out.write("spark_websocket_sessions " + getSessions() + "\n");
+        out.write("# HELP spark_websocket_messages_total Websocket messages, by what happened to them.\n");
+        out.write("# TYPE spark_websocket_messages_total counter\n");
+        out.write("spark_websocket_messages_total{outcome=\"published\"} " + getPublished() + "\n");
+        out.write("spark_websocket_messages_total{outcome=\"delivered\"} " + getDelivered() + "\n");
+        out.write("spark_websocket_messages_total{outcome=\"failed\"} " + getFailed() + "\n");
+        out.write("# HELP spark_websocket_evictions_total Slow consumers disconnected.\n");
+        out.write("# TYPE spark_websocket_evictions_total counter\n");
+        out.write("spark_websocket_evictions_total " + getEvicted() + "\n");
+    }
+
+    /**
+     * A published message, shared by every session it goes to.
+     */
+    private static class Message {
+        private final ByteBuffer payload;
+        private final boolean text;
+        private final long publishedAt = System.nanoTime();
+
+        private Message(ByteBuffer payload, boolean text) {
+            this.payload = payload;
+            this.text = text;
+        }
+
+        private WebSocketFrame frame() {
+            // each frame gets its own position and limit, over the same bytes
+            WebSocketFrame frame = text ? new TextFrame() : new BinaryFrame();
+            return frame.setPayload(payload.slice());
+        }
+    }
+
+    /**
+     * One session's queue. At most one write is in flight; whatever arrives meanwhile goes out
+     * with the next one, as a single batch.
+     */
+    private class Outbound {
+        private final Session session;
+        private final Set<String> topics = ConcurrentHashMap.newKeySet();
+        private final ConcurrentLinkedQueue<Message> queue = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger depth = new AtomicInteger();
+        private final AtomicBoolean sending = new AtomicBoolean();
+        private final AtomicBoolean evicted = new AtomicBoolean();
+
+        private Outbound(Session session) {
+            this.session = session;
+        }
+
+        private boolean enqueue(Message message) {
+            if (evicted.get()) {
+                return false;
+            }
+            if (depth.incrementAndGet() > maxQueuedPerSession) {
+                depth.decrementAndGet();
+                evict(this, "more than " + maxQueuedPerSession + " messages waiting");
+                return false;
+            }
+            Message oldest = queue.peek();
+            if (maxLagMillis > 0 && oldest != null
+                    && System.nanoTime() - oldest.publishedAt > TimeUnit.MILLISECONDS.toNanos(maxLagMillis)) {
+                depth.decrementAndGet();
+                evict(this, "oldest message waiting for more than " + maxLagMillis + "ms");
+                return false;
+            }
+            queue.offer(message);
+            queued.incrementAndGet();
+            send();
+            return true;
+        }
+
+        private void send() {
+            while (sending.compareAndSet(false, true)) {
+                List<Message> batch = new ArrayList<>();
+                Message message;
+                while (batch.size() < MAX_BATCH && (message = queue.poll()) != null) {
+                    batch.add(message);
+                }
+                if (batch.isEmpty()) {
+                    sending.set(false);
+                    if (queue.isEmpty()) {
+                        return;
+                    }
+                    // something arrived after we looked, go round again
+                    continue;
+                }
+                write(batch);
+                return;
+            }
+        }
+
+        private void write(List<Message> batch) {
+            if (!(session instanceof WebSocketSession)) {
+                // not Jetty's own session, send one by one through the public API
+                for (Message message : batch) {
+                    ByteBuffer payload = message.payload.slice();
+                    Sent sent = new Sent(message, message == batch.get(batch.size() - 1));
+                    if (message.text) {
+                        session.getRemote().sendString(StandardCharsets.UTF_8.decode(payload).toString(), sent);
+                    } else {
+                        session.getRemote().sendBytes(payload, sent);
+                    }
+                }
+                return;
+            }
+            OutgoingFrames outgoing = ((WebSocketSession) session).getOutgoingHandler();
+            for (int i = 0; i < batch.size(); i++) {
+                boolean last = i == batch.size() - 1;
+                // batched frames are gathered by Jetty's flusher and go out with the last one, in one write
+                outgoing.outgoingFrame(batch.get(i).frame(), new Sent(batch.get(i), last), last ? BatchMode.OFF : BatchMode.ON);
+            }
+        }
+
+        private class Sent implements WriteCallback {
+            private final Message message;
+            private final boolean last;
+
+            private Sent(Message message, boolean last) {
+                this.message = message;
+                this.last = last;
+            }
+
+            @Override
+            public void writeSuccess() {
+                deliveryLag.recordNanos(System.nanoTime() - message.publishedAt);
+                delivered.incrementAndGet();
+                done();
+            }
+
+            @Override
+            public void writeFailed(Throwable x) {
+                failed.incrementAndGet();
+                logger.debug("websocket send to {} failed", session.getRemoteAddress(), x);
+                done();
+            }
+
+            private void done() {
+                depth.decrementAndGet();
+                queued.decrementAndGet();
+                if (last) {
+                    sending.set(false);
+                    send();
+                }
+            }
+        }
+    }
+}
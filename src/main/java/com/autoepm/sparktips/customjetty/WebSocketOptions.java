@@ -0,0 +1,122 @@
+/*
+ * Copyright 2019 Giacomo Lacava
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package com.autoepm.sparktips.customjetty;
+
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.websocket.api.WebSocketPolicy;
+import org.eclipse.jetty.websocket.api.extensions.ExtensionFactory;
+import org.eclipse.jetty.websocket.server.NativeWebSocketConfiguration;
+import org.eclipse.jetty.websocket.server.WebSocketServerFactory;
+
+/**
+ * Websocket settings Spark doesn't let you touch, applied by MyCustomEmbeddedServer to the
+ * websocket context Spark builds. Like ConnectorOptions, anything left alone keeps the Jetty default.
+ **/
+public class WebSocketOptions {
+
+    // negative means "leave the Jetty default alone"
+    private int maxTextMessageSize = -1;
+    private int maxBinaryMessageSize = -1;
+    private int inputBufferSize = -1;
+    private long asyncWriteTimeoutMillis = -1;
+    // null means "leave the Jetty default alone", which is on
+    private Boolean perMessageDeflate = null;
+
+    public int getMaxTextMessageSize() {
+        return maxTextMessageSize;
+    }
+
+    public int getMaxBinaryMessageSize() {
+        return maxBinaryMessageSize;
+    }
+
+    public int getInputBufferSize() {
+        return inputBufferSize;
+    }
+
+    public long getAsyncWriteTimeoutMillis() {
+        return asyncWriteTimeoutMillis;
+    }
+
+    public Boolean getPerMessageDeflate() {
+        return perMessageDeflate;
+    }
+
+    /**
+     * Largest incoming messages, in bytes. Anything bigger closes the session with 1009.
+     * Jetty's defaults (64KB) are fine for chat, too small for e.g. uploads over websocket.
+     */
+    public WebSocketOptions withMaxMessageSizes(int maxTextMessageSize, int maxBinaryMessageSize) {
+        this.maxTextMessageSize = maxTextMessageSize;
+        this.maxBinaryMessageSize = maxBinaryMessageSize;
+        return this;
+    }
+
+    public WebSocketOptions withInputBufferSize(int inputBufferSize) {
+        this.inputBufferSize = inputBufferSize;
+        return this;
+    }
+
+    /**
+     * How long an async send may wait on a client that doesn't read before it fails.
+     */
+    public WebSocketOptions withAsyncWriteTimeoutMillis(long asyncWriteTimeoutMillis) {
+        this.asyncWriteTimeoutMillis = asyncWriteTimeoutMillis;
+        return this;
+    }
+
+    /**
+     * permessage-deflate (and the older deflate-frame variants) trade CPU for bandwidth: every message
+     * is compressed once per session, which adds up quickly when broadcasting to thousands of clients.
+     * Set false to stop offering it.
+     */
+    public WebSocketOptions withPerMessageDeflate(boolean perMessageDeflate) {
+        this.perMessageDeflate = perMessageDeflate;
+        return this;
+    }
+
+    /**
+     * The factory behind the context Spark built, null if it doesn't look like one of Spark's.
+     */
+    static WebSocketServerFactory factoryOf(ServletContextHandler context) {
+        Object configuration = context.getServletContext().getAttribute(NativeWebSocketConfiguration.class.getName());
+        return configuration instanceof NativeWebSocketConfiguration ? ((NativeWebSocketConfiguration) configuration).getFactory() : null;
+    }
+
+    void applyTo(WebSocketServerFactory factory) {
+        WebSocketPolicy policy = factory.getPolicy();
+        if (maxTextMessageSize > 0) {
+            policy.setMaxTextMessageSize(maxTextMessageSize);
+        }
+        if (maxBinaryMessageSize > 0) {
+            policy.setMaxBinaryMessageSize(maxBinaryMessageSize);
+        }
+        if (inputBufferSize > 0) {
+            policy.setInputBufferSize(inputBufferSize);
+        }
+        if (asyncWriteTimeoutMillis > 0) {
+            policy.setAsyncWriteTimeout(asyncWriteTimeoutMillis);
+        }
+        if (Boolean.FALSE.equals(perMessageDeflate)) {
+            ExtensionFactory extensions = factory.getExtensionFactory();
+            extensions.unregister("permessage-deflate");
+            extensions.unregister("deflate-frame");
+            extensions.unregister("x-webkit-deflate-frame");
+        }
+    }
+}
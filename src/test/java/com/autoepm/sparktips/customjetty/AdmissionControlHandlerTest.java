@@ -0,0 +1,58 @@
+/*
+ * Copyright 2019 Giacomo Lacava
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+
+package com.autoepm.sparktips.customjetty;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class AdmissionControlHandlerTest {
+    private static final long SLOW = 200_000_000L;
+    private static final long FAST = 1_000_000L;
+
+    @Test
+    public void aimdBacksOffOncePerRound() {
+        AdmissionControlHandler.AimdLimit limit = new AdmissionControlHandler.AimdLimit(100, 1, 200, 50);
+        // a whole round finishing over target at once is one congestion signal, not a hundred
+        for (int i = 0; i < 90; i++) {
+            limit.onSample(SLOW, 100 - i);
+        }
+        assertEquals(90, limit.getLimit());
+        // a new round has gone through since the first backoff, still slow
+        limit.onSample(SLOW, 90);
+        assertEquals(81, limit.getLimit());
+    }
+
+    @Test
+    public void aimdGrowsWhileTheLimitIsUsed() {
+        AdmissionControlHandler.AimdLimit limit = new AdmissionControlHandler.AimdLimit(10, 1, 200, 50);
+        for (int i = 0; i < 10; i++) {
+            limit.onSample(FAST, 10);
+        }
+        assertEquals(10, limit.getLimit());
+        for (int i = 0; i < 10; i++) {
+            limit.onSample(FAST, 10);
+        }
+        assertEquals(11, limit.getLimit());
+        for (int i = 0; i < 100; i++) {
+            limit.onSample(FAST, 1);
+        }
+        assertEquals(11, limit.getLimit());
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright 2019 Giacomo Lacava
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package com.autoepm.sparktips.customjetty;
+
+import org.junit.After;
+import org.junit.Test;
+import spark.Service;
+import spark.embeddedserver.EmbeddedServers;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static com.autoepm.sparktips.customjetty.AsyncRouteHandler.async;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class BulkheadHandlerTest {
+    private Service service;
+
+    private void start(MyCustomEmbeddedServerFactory factory) {
+        EmbeddedServers.add(EmbeddedServers.Identifiers.JETTY, factory);
+        service = Service.ignite().port(0);
+    }
+
+    @After
+    public void stop() {
+        if (service != null) {
+            service.stop();
+            service.awaitStop();
+        }
+    }
+
+    @Test
+    public void runsMatchingRequestsOnTheBulkhead() throws Exception {
+        start(new MyCustomEmbeddedServerFactory()
+                .withBulkhead("/slow", 2, 10));
+        service.get("/slow/thread", (request, response) -> Thread.currentThread().getName());
+        service.get("/fast/thread", (request, response) -> Thread.currentThread().getName());
+        service.awaitInitialization();
+
+        assertTrue(get("/slow/thread").startsWith("bulkhead-slow-"));
+        assertTrue(get("/fast/thread").startsWith("qtp"));
+    }
+
+    @Test
+    public void coalescedCacheMissesInsideABulkheadAreSuspended() throws Exception {
+        ResponseCacheHandler cache = new ResponseCacheHandler().withRoute("/slow", 60);
+        // fewer threads than requests: followers that held on to theirs would run the route again, or time out
+        start(new MyCustomEmbeddedServerFactory()
+                .withBulkhead("/slow", 2, 20)
+                .withResponseCache(cache));
+        AtomicInteger runs = new AtomicInteger();
+        service.get("/slow/report", (request, response) -> {
+            runs.incrementAndGet();
+            Thread.sleep(500);
+            return "report";
+        });
+        service.awaitInitialization();
+
+        ExecutorService clients = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<String>> responses = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                responses.add(clients.submit(() -> get("/slow/report")));
+            }
+            for (Future<String> response : responses) {
+                assertEquals("report", response.get(10, TimeUnit.SECONDS));
+            }
+        } finally {
+            clients.shutdownNow();
+        }
+        assertEquals(1, runs.get());
+        assertEquals(7, cache.getCoalesced());
+    }
+
+    @Test
+    public void asyncRoutesInsideABulkheadFreeTheBulkheadThread() throws Exception {
+        AsyncRouteHandler asyncRoutes = new AsyncRouteHandler();
+        start(new MyCustomEmbeddedServerFactory()
+                .withBulkhead("/slow", 1, 10)
+                .withAsyncRoutes(asyncRoutes));
+        AtomicReference<CompletableFuture<String>> pending = new AtomicReference<>(new CompletableFuture<>());
+        service.get("/slow/later", async((request, response) -> pending.get()));
+        service.get("/slow/now", (request, response) -> "now");
+        service.awaitInitialization();
+
+        ExecutorService clients = Executors.newSingleThreadExecutor();
+        try {
+            Future<String> later = clients.submit(() -> get("/slow/later"));
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            while (asyncRoutes.getPending() == 0 && System.nanoTime() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(1, asyncRoutes.getPending());
+            // the bulkhead's only thread isn't stuck waiting for the stage
+            assertEquals("now", get("/slow/now"));
+            pending.get().complete("later");
+            assertEquals("later", later.get(10, TimeUnit.SECONDS));
+        } finally {
+            clients.shutdownNow();
+        }
+        assertEquals(1, asyncRoutes.getCompleted());
+        assertEquals(0, asyncRoutes.getFailed());
+    }
+
+    @Test
+    public void metricsPageIncludesTheHandlers() throws Exception {
+        start(new MyCustomEmbeddedServerFactory()
+                .withBulkhead("/slow", 2, 10)
+                .withResponseCache(new ResponseCacheHandler().withRoute("/slow", 60))
+                .withAdmissionControl(new AdmissionControlHandler(new AdmissionControlHandler.FixedLimit(10)))
+                .withConnectorOptions(new ConnectorOptions().withByteBufferPool(new InstrumentedByteBufferPool()))
+                .withRequestMetrics(new RequestMetrics(), "/metrics"));
+        service.get("/slow/report", (request, response) -> "report");
+        service.awaitInitialization();
+
+        get("/slow/report");
+        get("/slow/report");
+        String metrics = get("/metrics");
+        assertTrue(metrics.contains("spark_bulkhead_requests_total{bulkhead=\"/slow\",outcome=\"completed\"} 2\n"));
+        assertTrue(metrics.contains("spark_response_cache_requests_total{result=\"hit\"} 1\n"));
+        assertTrue(metrics.contains("spark_admission_limit 10\n"));
+        assertTrue(metrics.contains("# TYPE spark_buffer_pool_acquires_total counter\n"));
+    }
+
+    String get(String path) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL("http://localhost:" + service.port() + path).openConnection();
+        assertEquals(200, connection.getResponseCode());
+        try (InputStream in = connection.getInputStream()) {
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                body.write(buffer, 0, read);
+            }
+            return new String(body.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+}
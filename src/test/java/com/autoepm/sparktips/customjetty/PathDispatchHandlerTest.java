@@ -0,0 +1,66 @@
+/*
+ * Copyright 2019 Giacomo Lacava
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+
+package com.autoepm.sparktips.customjetty;
+
+import org.eclipse.jetty.server.Handler;
+import org.eclipse.jetty.server.handler.DefaultHandler;
+import org.junit.Test;
+
+import javax.servlet.http.HttpServletRequest;
+import java.lang.reflect.Proxy;
+
+import static org.junit.Assert.assertSame;
+
+public class PathDispatchHandlerTest {
+    private final Handler spark = new DefaultHandler();
+    private final Handler webSocket = new DefaultHandler();
+    private final Handler assets = new DefaultHandler();
+
+    @Test
+    public void webSocketPathsKeepTheirTrailingSlash() throws Exception {
+        PathDispatchHandler dispatcher = new PathDispatchHandler(spark)
+                .withWebSocketPath("/ws/", webSocket)
+                .withPrefix("/ws/", assets);
+        dispatcher.start();
+
+        assertSame(webSocket, dispatcher.find("/ws/", request("websocket")));
+        assertSame(assets, dispatcher.find("/ws", request("websocket")));
+        assertSame(assets, dispatcher.find("/ws/", request(null)));
+        assertSame(assets, dispatcher.find("/ws/app.js", request("websocket")));
+    }
+
+    @Test
+    public void prefixesMatchOnPathBoundaries() throws Exception {
+        PathDispatchHandler dispatcher = new PathDispatchHandler(spark)
+                .withWebSocketPath("/ws", webSocket)
+                .withPrefix("/assets", assets);
+        dispatcher.start();
+
+        assertSame(webSocket, dispatcher.find("/ws", request("websocket")));
+        assertSame(spark, dispatcher.find("/ws/", request("websocket")));
+        assertSame(assets, dispatcher.find("/assets/app.js", request(null)));
+        assertSame(spark, dispatcher.find("/assetsfoo", request(null)));
+    }
+
+    private static HttpServletRequest request(String upgrade) {
+        return (HttpServletRequest) Proxy.newProxyInstance(PathDispatchHandlerTest.class.getClassLoader(),
+                new Class<?>[]{HttpServletRequest.class},
+                (proxy, method, args) -> "getHeader".equals(method.getName()) && "Upgrade".equals(args[0]) ? upgrade : null);
+    }
+}